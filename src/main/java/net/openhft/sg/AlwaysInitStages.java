@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg;
+
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenCustomHashMap;
+import spoon.reflect.code.CtInvocation;
+import spoon.reflect.code.CtStatement;
+import spoon.reflect.code.CtThisAccess;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtConstructor;
+import spoon.reflect.declaration.CtExecutable;
+import spoon.reflect.declaration.CtMethod;
+
+import java.util.*;
+
+import static java.util.stream.Collectors.toList;
+import static net.openhft.sg.CompilationContext.identityHashedEquivalence;
+
+/**
+ * Finds stages, which couldn't be observed not init between the construction of the context
+ * and the global close:
+ * <ul>
+ *     <li>the stage's no-arg init method is called on the top level of all constructors of the
+ *     class, declaring the stage;</li>
+ *     <li>init and close methods of the stage are not called anywhere else;</li>
+ *     <li>the same is true for all stages, on which the stage depends, directly or via
+ *     methods, except they might be init lazily, rather than in constructors.</li>
+ * </ul>
+ * Stages "init" by their field default are not detected: the default value of a stage's field
+ * is the stage's "not init" state, so such a field is just not a stage. Only {@code initX()}
+ * calls on the top level of constructors are recognized, calls nested in conditions, loops or
+ * other methods are not.
+ */
+final class AlwaysInitStages {
+
+    private final CompilationContext cxt;
+    private final Set<StageModel> explicitlyInitOrClosed = new HashSet<>();
+    private final Map<StageModel, Boolean> stable =
+            new Object2ObjectOpenCustomHashMap<>(identityHashedEquivalence());
+
+    AlwaysInitStages(CompilationContext cxt) {
+        this.cxt = cxt;
+        cxt.allClasses().flatMap(c -> Compiler.stagedClassExtensionChain(c).stream())
+                .distinct()
+                .forEach(c -> c.getElements((CtInvocation<?> invocation) -> {
+                    if (invocation.getParent(CtConstructor.class) != null ||
+                            invocation.getExecutable().getDeclaringType() == null)
+                        return false;
+                    CtExecutable<?> declaration = invocation.getExecutable().getDeclaration();
+                    if (declaration instanceof CtMethod) {
+                        CtMethod<?> method = (CtMethod<?>) declaration;
+                        StageModel stage = cxt.getStageModelByInitStage(method);
+                        if (stage == null)
+                            stage = cxt.getStageModelByClose(method);
+                        if (stage != null)
+                            explicitlyInitOrClosed.add(stage);
+                    }
+                    return false;
+                }));
+    }
+
+    void markAlwaysInitStages() {
+        List<StageModel> alwaysInitStages = cxt.allStageModels()
+                .filter(StageModel::canBeAlwaysInit)
+                .filter(AlwaysInitStages::initInAllConstructors)
+                .filter(this::stable)
+                .collect(toList());
+        alwaysInitStages.forEach(StageModel::markAlwaysInit);
+    }
+
+    private static boolean initInAllConstructors(StageModel stage) {
+        CtClass<?> declaringClass = stage.declaringType;
+        List<CtConstructor<?>> constructors = declaringClass.getConstructors().stream()
+                .filter(c -> !c.isImplicit() && c.getBody() != null)
+                .collect(toList());
+        if (constructors.isEmpty())
+            return false;
+        String initMethodName = stage.getNoArgInitStageMethod().getSimpleName();
+        return constructors.stream().allMatch(c -> {
+            for (CtStatement statement : c.getBody().getStatements()) {
+                if (statement instanceof CtInvocation) {
+                    CtInvocation<?> invocation = (CtInvocation<?>) statement;
+                    if (invocation.getExecutable().getSimpleName().equals(initMethodName) &&
+                            invocation.getArguments().isEmpty() &&
+                            (invocation.getTarget() == null ||
+                                    invocation.getTarget() instanceof CtThisAccess)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        });
+    }
+
+    /**
+     * If the stage couldn't be closed or re-init other than by the global close.
+     */
+    private boolean stable(StageModel stage) {
+        Boolean stageStable = stable.get(stage);
+        if (stageStable != null)
+            return stageStable;
+        stageStable = !explicitlyInitOrClosed.contains(stage) &&
+                stageDependencies(stage).stream().allMatch(this::stable);
+        stable.put(stage, stageStable);
+        return stageStable;
+    }
+
+    private static Set<StageModel> stageDependencies(StageModel stage) {
+        Set<StageModel> stageDependencies = new HashSet<>();
+        Set<DependencyNode> visited = new HashSet<>();
+        Deque<DependencyNode> toVisit = new ArrayDeque<>(stage.getDependencies());
+        DependencyNode node;
+        while ((node = toVisit.poll()) != null) {
+            if (!visited.add(node))
+                continue;
+            if (node instanceof StageModel) {
+                stageDependencies.add((StageModel) node);
+            } else {
+                toVisit.addAll(node.getDependencies());
+            }
+        }
+        return stageDependencies;
+    }
+}
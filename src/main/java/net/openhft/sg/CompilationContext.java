@@ -81,13 +81,18 @@ public class CompilationContext {
     private Map<CtField<?>, CtClass<?>> stageReferencedClass = namedHashedMap();
     private Map<CtClass<?>, CompilationNode> classToCompilationNode = namedHashedMap();
     private Map<CtMethod<Void>, DependencyNode> closeDependantsToNode = namedHashedMap();
+    private Map<CtMethod<Void>, StageModel> doCloseMethodToStage = namedHashedMap();
     private Map<CtMethod<?>, StageModel> accessMethodToStage = namedHashedMap();
+    private Map<CtMethod<?>, StageModel> guardedStageMethodToStage = namedHashedMap();
+    private Map<CtMethod<Void>, StageModel> slowInitMethodToStage = namedHashedMap();
+    private Map<CtMethod<?>, MethodNode> fastPathMethodToNode = namedHashedMap();
     private Map<DependencyNode, Integer> nodeToOrder =
             new Object2ObjectOpenCustomHashMap<>(identityHashedEquivalence());
     private Map<DependencyNode, CtClass<?>> dependencyNodeToAnyStagedClass =
             new Object2ObjectOpenCustomHashMap<>(identityHashedEquivalence());
 
     private Map<CtClass<?>, CompilationNode> anyStagedClassToNode = namedHashedMap();
+    private Map<CtField<?>, Boolean> specializedUninitFields = namedHashedMap();
     
     public void bind(CtMethod<?> method, MethodNode node) {
         if (methodToNode.putIfAbsent(method, node) != null)
@@ -106,6 +111,18 @@ public class CompilationContext {
     public StageModel getStageModel(CtField<?> field) {
         return fieldToStage.get(field);
     }
+
+    /**
+     * The {@code null} uninit value of the field is specialized to the default primitive value,
+     * which might be a valid value of the field as well.
+     */
+    public void markSpecializedUninit(CtField<?> field) {
+        specializedUninitFields.put(field, true);
+    }
+
+    public boolean isSpecializedUninit(CtField<?> field) {
+        return specializedUninitFields.containsKey(field);
+    }
     
     public void bindClose(CtMethod<Void> closeMethod, StageModel node) {
         if (closeMethodToStage.putIfAbsent(closeMethod, node) != null)
@@ -182,12 +199,48 @@ public class CompilationContext {
         if (closeDependantsToNode.putIfAbsent(closeDependants, node) != null)
             throw new AssertionError();
     }
+
+    public void bindDoClose(CtMethod<Void> doCloseMethod, StageModel node) {
+        if (doCloseMethodToStage.putIfAbsent(doCloseMethod, node) != null)
+            throw new AssertionError();
+    }
+
+    /**
+     * If the method closes a stage, with or without its dependants, or only its dependants.
+     */
+    public boolean isCloseMethod(CtMethod<?> method) {
+        return closeMethodToStage.containsKey(method) || doCloseMethodToStage.containsKey(method) ||
+                closeDependantsToNode.containsKey(method);
+    }
     
     public void bindAccessMethod(CtMethod<?> accessMethod, StageModel node) {
         if (accessMethodToStage.putIfAbsent(accessMethod, node) != null)
             throw new AssertionError();
     }
     
+    public StageModel getStageModelByAccessMethod(CtMethod<?> accessMethod) {
+        return accessMethodToStage.get(accessMethod);
+    }
+
+    public void bindGuardedStageMethod(CtMethod<?> guardedStageMethod, StageModel node) {
+        if (guardedStageMethodToStage.putIfAbsent(guardedStageMethod, node) != null)
+            throw new AssertionError();
+    }
+
+    public StageModel getStageModelByGuardedStageMethod(CtMethod<?> guardedStageMethod) {
+        return guardedStageMethodToStage.get(guardedStageMethod);
+    }
+    
+    public void bindSlowInit(CtMethod<Void> slowInitMethod, StageModel node) {
+        if (slowInitMethodToStage.putIfAbsent(slowInitMethod, node) != null)
+            throw new AssertionError();
+    }
+    
+    public void bindFastPath(CtMethod<?> fastPathMethod, MethodNode node) {
+        if (fastPathMethodToNode.putIfAbsent(fastPathMethod, node) != null)
+            throw new AssertionError();
+    }
+    
     public void setNodeOrder(DependencyNode node, int order) {
         if (nodeToOrder.putIfAbsent(node, order) != null)
             throw new AssertionError();
@@ -212,10 +265,14 @@ public class CompilationContext {
         DependencyNode d;
         if ((d = getMethodNode(method)) != null)
             return nodeToOrder.get(d) * 10;
+        if ((d = fastPathMethodToNode.get(method)) != null)
+            return nodeToOrder.get(d) * 10 + 1;
         if ((d = getStageModelByStageInit(method)) != null)
             return nodeToOrder.get(d) * 10 + 1;
         if ((d = getStageModelByInitStage(method)) != null)
             return nodeToOrder.get(d) * 10 + 2;
+        if ((d = slowInitMethodToStage.get(method)) != null)
+            return nodeToOrder.get(d) * 10 + 2;
         if ((d = accessMethodToStage.get(method)) != null)
             return nodeToOrder.get(d) * 10 + 3;
         if ((d = getStageModelByClose(method)) != null)
@@ -242,4 +299,18 @@ public class CompilationContext {
     public CtClass<?> getAnyStagedClassByDependencyNode(DependencyNode node) {
         return dependencyNodeToAnyStagedClass.get(node);
     }
+
+    /**
+     * Forgets the given node, which members are removed from the compiled classes (or don't
+     * belong to any node anymore).
+     */
+    void unbind(DependencyNode node) {
+        fieldToStage.values().removeIf(n -> n == node);
+        methodToNode.values().removeIf(n -> n == node);
+        closeMethodToStage.values().removeIf(n -> n == node);
+        initMethodToStage.values().removeIf(n -> n == node);
+        stageMethodsToStage.values().removeIf(n -> n == node);
+        stageInitMethodToStage.values().removeIf(n -> n == node);
+        dependencyNodeToAnyStagedClass.remove(node);
+    }
 }
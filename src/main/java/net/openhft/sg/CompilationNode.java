@@ -17,28 +17,32 @@
 
 package net.openhft.sg;
 
-import spoon.reflect.code.CtCodeSnippetExpression;
-import spoon.reflect.code.CtExpression;
-import spoon.reflect.code.CtFieldAccess;
-import spoon.reflect.code.CtThisAccess;
+import spoon.reflect.code.*;
 import spoon.reflect.declaration.CtClass;
 import spoon.reflect.declaration.CtConstructor;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtExecutable;
 import spoon.reflect.declaration.CtField;
 import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.declaration.ModifierKind;
 import spoon.reflect.factory.Factory;
 import spoon.reflect.reference.CtTypeReference;
 
 import java.util.ArrayList;
 import java.util.EnumSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import static java.lang.Math.min;
 import static java.util.Collections.emptyList;
+import static java.util.Collections.emptySet;
 import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
 import static net.openhft.sg.CompilationContext.namedHashedMap;
 import static net.openhft.sg.ExtensionChains.add;
 import static net.openhft.sg.StageGraphCompilationException.sgce;
+import static net.openhft.sg.StringUtils.capitalize;
 import static spoon.reflect.declaration.ModifierKind.*;
 
 public class CompilationNode {
@@ -53,11 +57,15 @@ public class CompilationNode {
     List<CtClass<?>> classesToMerge = new ArrayList<>();
     private List<CompilationNode> innerNodes = new ArrayList<>();
     boolean eraseTypeParameters = false;
+    private boolean instantiateLazily = false;
+    private Map<String, Class<?>> specializedTypeParameters = new LinkedHashMap<>();
     
     CtField<?> parentAccessField;
+    private CtMethod<?> lazyAccessor;
     private List<CtField<?>> rootAccessPath;
     
     private CtClass<?> mergedClass;
+    private int initBitsCount = 0;
 
     Map<CtMethod<?>, MethodNode> interfaceMethodToNode = namedHashedMap();
     
@@ -83,6 +91,49 @@ public class CompilationNode {
         return this;
     }
     
+    /**
+     * Makes the field, referencing this node from the parent node, null until the first access
+     * through the generated access chain, instead of allocating the merged class of this node
+     * together with the parent. Closes of stages of this node are skipped, while it is not
+     * allocated. Nodes instantiated lazily are not flattened.
+     */
+    public CompilationNode instantiateLazily() {
+        if (parent == null)
+            throw sgce("Root compilation node cannot be instantiated lazily: " + classesToMerge);
+        instantiateLazily = true;
+        return this;
+    }
+
+    boolean instantiatesLazily() {
+        return instantiateLazily;
+    }
+
+    /**
+     * Replaces the type parameter with the given name of the classes of this node with
+     * {@code long}, {@code int} or {@code double}. To have several specializations of the same
+     * classes, each should be compiled separately, with a new {@code Factory}.
+     *
+     * @see PrimitiveSpecialization
+     */
+    public CompilationNode specialize(String typeParameter, Class<?> primitiveType) {
+        specializedTypeParameters.put(typeParameter, primitiveType);
+        return this;
+    }
+
+    void specializeTypeParameters() {
+        specializedTypeParameters.forEach((typeParameter, primitiveType) -> {
+            List<CtClass<?>> declaringClasses = classesToMerge.stream()
+                    .filter(c -> c.getFormalTypeParameters().stream()
+                            .anyMatch(p -> p.getSimpleName().equals(typeParameter)))
+                    .collect(toList());
+            if (declaringClasses.isEmpty())
+                throw sgce("Type parameter " + typeParameter + " not found in " + classesToMerge);
+            declaringClasses.forEach(c ->
+                    new PrimitiveSpecialization(c, typeParameter, primitiveType).specialize()
+                            .forEach(cxt::markSpecializedUninit));
+        });
+    }
+
     public CompilationNode addClassToMerge(Class<?> classToMerge) {
         if (classToMerge.getAnnotation(Staged.class) == null)
             throw sgce("All compiled classes should be annotated Staged: " + classToMerge);
@@ -104,6 +155,32 @@ public class CompilationNode {
         return this;
     }
 
+    /**
+     * Allocates the next bit in this node's packed init state words, declaring a new
+     * {@code long} word in the first class to merge each time the previous one is full.
+     */
+    int allocateInitBit() {
+        int index = initBitsCount++;
+        if ((index & 63) == 0) {
+            CtClass<?> declaringClass = classesToMerge.get(0);
+            f.Field().create(declaringClass, EnumSet.noneOf(ModifierKind.class),
+                    f.Type().LONG_PRIMITIVE, initBitsWordName(index));
+        }
+        return index;
+    }
+
+    static String initBitsWordName(int initBitIndex) {
+        return "stageInitBits" + (initBitIndex >>> 6);
+    }
+
+    List<CtField<?>> initBitsWords() {
+        List<CtField<?>> words = new ArrayList<>();
+        for (int index = 0; index < initBitsCount; index += 64) {
+            words.add(classesToMerge.get(0).getField(initBitsWordName(index)));
+        }
+        return words;
+    }
+
     void computeRootAccessPath() {
         if (parent == null) {
             rootAccessPath = emptyList();
@@ -138,6 +215,11 @@ public class CompilationNode {
         CtClass<?> classToMerge = thisNodeToAccess.classesToMerge.get(0);
         CtThisAccess<?> thisAccess = f.Code().createThisAccess(classToMerge.getReference());
 //        thisAccess.setImplicit(false);
+        if (thisNodeToAccess != this) {
+            // qualified this access of the outer node, e. g. Outer.this
+            thisAccess.setTarget(f.Code().createTypeAccess(thisAccess.getType()));
+            thisAccess.setImplicit(false);
+        }
         if (access != null) {
             CtFieldAccess<?> innerMostAccess = access;
             while (innerMostAccess.getTarget() != null) {
@@ -203,17 +285,80 @@ public class CompilationNode {
         }
     }
     
+    List<CompilationNode> innerNodes() {
+        return innerNodes;
+    }
+
     void mergeChildNodes() {
         CtClass<?> mergedClass = getMergedClass();
         for (CompilationNode child : innerNodes) {
             CtClass<?> childMergedClass = child.getMergedClass();
             add(mergedClass, childMergedClass, mergedClass::addNestedType);
-            CtCodeSnippetExpression constructor = f.Core().createCodeSnippetExpression();
-            constructor.setValue("new " + childMergedClass.getSimpleName() + "()");
-            child.parentAccessField.setDefaultExpression(constructor);
             child.parentAccessField.setType((CtTypeReference) childMergedClass.getReference());
-            child.parentAccessField.addModifier(FINAL);
+            if (child.instantiateLazily) {
+                child.generateLazyAccessor(childMergedClass);
+            } else {
+                CtCodeSnippetExpression constructor = f.Core().createCodeSnippetExpression();
+                constructor.setValue("new " + childMergedClass.getSimpleName() + "()");
+                child.parentAccessField.setDefaultExpression(constructor);
+                child.parentAccessField.addModifier(FINAL);
+            }
             child.mergeChildNodes();
         }
     }
+
+    private void generateLazyAccessor(CtClass<?> mergedClass) {
+        CtClass<?> declaringType = (CtClass<?>) parentAccessField.getDeclaringType();
+        String field = "this." + parentAccessField.getSimpleName();
+        String accessorName = parentAccessField.getSimpleName();
+        if (!declaringType.getMethodsByName(accessorName).isEmpty())
+            accessorName = "lazy" + capitalize(accessorName);
+        CtBlock body = f.Core().createBlock();
+        body.addStatement(f.Code().createCodeSnippetStatement("if (" + field + " == null) " +
+                field + " = new " + mergedClass.getSimpleName() + "()"));
+        body.addStatement(f.Code().createCodeSnippetStatement("return " + field));
+        lazyAccessor = f.Method().create(declaringType, EnumSet.of(PUBLIC),
+                parentAccessField.getType(), accessorName, emptyList(), emptySet(), body);
+    }
+
+    /**
+     * Replaces reads of the fields, referencing lazily instantiated child nodes, in the given
+     * class with calls to the accessors, allocating the nodes. Statements, closing something in
+     * a lazily instantiated node, check that the node is allocated instead.
+     */
+    void instantiateLazyChildNodesOnAccess(CtClass<?> topClass) {
+        for (CompilationNode child : innerNodes) {
+            if (child.instantiateLazily) {
+                List<CtFieldRead<?>> reads = topClass.getElements((CtFieldRead<?> read) ->
+                        read.getVariable().getDeclaration() == child.parentAccessField);
+                reads.forEach(child::replaceParentAccessFieldRead);
+            }
+            child.instantiateLazyChildNodesOnAccess(topClass);
+        }
+    }
+
+    private void replaceParentAccessFieldRead(CtFieldRead<?> read) {
+        CtElement chain = read;
+        while (chain.getParent() instanceof CtFieldAccess &&
+                ((CtFieldAccess<?>) chain.getParent()).getTarget() == chain) {
+            chain = chain.getParent();
+        }
+        if (chain.getParent() instanceof CtInvocation &&
+                ((CtInvocation<?>) chain.getParent()).getTarget() == chain &&
+                chain.getParent().getParent() instanceof CtStatementList) {
+            CtInvocation<?> invocation = (CtInvocation<?>) chain.getParent();
+            CtExecutable<?> executable = invocation.getExecutable().getDeclaration();
+            if (executable instanceof CtMethod && cxt.isCloseMethod((CtMethod<?>) executable)) {
+                CtIf ifAllocated = f.Core().createIf();
+                ifAllocated.setCondition(f.Code().createBinaryOperator(f.Core().clone(read),
+                        f.Code().createLiteral(null), BinaryOperatorKind.NE));
+                invocation.replace(ifAllocated);
+                CtBlock<?> thenBlock = f.Core().createBlock();
+                thenBlock.addStatement(invocation);
+                ifAllocated.setThenStatement(thenBlock);
+                return;
+            }
+        }
+        read.replace(f.Code().createInvocation(read.getTarget(), lazyAccessor.getReference()));
+    }
 }
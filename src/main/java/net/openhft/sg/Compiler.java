@@ -30,10 +30,13 @@ import spoon.reflect.visitor.Filter;
 import java.lang.annotation.Annotation;
 import java.util.*;
 import java.util.function.Consumer;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
+import static java.lang.Math.min;
 import static java.util.Collections.emptyList;
 import static java.util.Collections.emptySet;
+import static java.util.Collections.singletonList;
 import static java.util.stream.Collectors.toList;
 import static net.openhft.sg.CompilationContext.namedHashedMap;
 import static net.openhft.sg.Compiler.Visited.END;
@@ -47,6 +50,35 @@ public class Compiler {
 
     private String mergedClassName;
     private String mergedClassPackage;
+    private boolean packInitStates = false;
+    private boolean trackStagesToClose = false;
+    private boolean eliminateRedundantGuards = false;
+    private boolean outlineSlowInitPaths = false;
+    private boolean checkMethodSizes = false;
+    private boolean flattenCloseCascades = false;
+    private boolean lazyInvalidation = false;
+    private boolean versionEntryMethods = false;
+    private boolean layOutFields = false;
+    private boolean flattenChildNodes = false;
+    private boolean eliminateAlwaysInitStages = false;
+    private boolean devirtualize = false;
+    private boolean generatePool = false;
+    private boolean generateCopyStateFrom = false;
+    private boolean generateCheckpoints = false;
+    private boolean groupStages = false;
+    private boolean shortCircuitSameArgumentInits = false;
+    private final Set<String> disabledFeatures = new HashSet<>();
+    private boolean eliminateUnreachableNodes = false;
+    private boolean instrumentStages = false;
+    private long slowInitThresholdNanos = -1L;
+    private int initSampleRate = 0;
+    private int traceCapacity = 0;
+    private StageProfile profile;
+    private List<String> tracedStageNames = Collections.emptyList();
+    private boolean padFields = false;
+    private List<String> fieldLayoutReport = emptyList();
+    private List<String> methodSizeWarnings = emptyList();
+    private int eliminatedNodeCount = 0;
 
     public Compiler(CompilationNode root) {
         assert root.parent == null;
@@ -64,21 +96,409 @@ public class Compiler {
         return this;
     }
 
+    /**
+     * Track init states of stages with a distinguished init field as bits in generated
+     * {@code long} words, one set of words per compilation node, rather than by comparing
+     * each init field with its sentinel value. Stage is considered init after any of its
+     * init methods completes, and uninit after close.
+     */
+    public Compiler packInitStates() {
+        packInitStates = true;
+        return this;
+    }
+
+    /**
+     * Mark stages with bits in the root's {@code long} words when they are init, so that global
+     * {@code close()} visits only stages which were init since the previous global close,
+     * rather than every stage in the context.
+     */
+    public Compiler trackStagesToClose() {
+        trackStagesToClose = true;
+        return this;
+    }
+
+    /**
+     * Replace guarded accesses to stages, which are proven to be init by a dominating guarded
+     * access in the same method, with raw field reads and stage method calls.
+     *
+     * @see GuardElimination
+     */
+    public Compiler eliminateRedundantGuards() {
+        eliminateRedundantGuards = true;
+        return this;
+    }
+
+    /**
+     * Make generated accessors and guarded stage methods call a single per-stage
+     * {@code slowInitX()} method on the uninit path, instead of {@code initX()} directly, so
+     * that they stay tiny check-and-return methods, which JIT reliably inlines. The slow init
+     * method only counts the slow guard, if stages are instrumented, and calls {@code initX()}.
+     */
+    public Compiler outlineSlowInitPaths() {
+        outlineSlowInitPaths = true;
+        return this;
+    }
+
+    /**
+     * Outline generated close methods, which are estimated to exceed HotSpot's
+     * HugeMethodLimit, into several helper methods, move generated epilogues of such init
+     * methods to helper methods, and report user-written methods, which are estimated to exceed
+     * inlining or huge method thresholds.
+     *
+     * @see #getMethodSizeWarnings()
+     * @see MethodSizes
+     */
+    public Compiler checkMethodSizes() {
+        checkMethodSizes = true;
+        return this;
+    }
+
+    /**
+     * Returns warnings about too big user-written methods, found during the last {@link
+     * #compile()}, if {@link #checkMethodSizes()} is on.
+     */
+    public List<String> getMethodSizeWarnings() {
+        return methodSizeWarnings;
+    }
+
+    /**
+     * Generate closeXDependants() methods, which close all transitive dependants of the stage
+     * in topological order, each exactly once, instead of cascading close via dependants' close
+     * methods, which revisit shared downstream stages in diamond-shaped graphs.
+     */
+    public Compiler flattenCloseCascades() {
+        flattenCloseCascades = true;
+        return this;
+    }
+
+    /**
+     * Instead of eager closing of dependants, when an already init stage is re-init, just bump
+     * the context-wide {@code stageEpoch} counter. Each stage with a no-arg init method stores
+     * versions of its stage dependencies at its own init, and when the epoch has changed
+     * since the stage was validated last time, its guard checks the dependencies' versions,
+     * and re-init the stage if some of them are changed. Stages which have some dependants
+     * which couldn't refresh lazily (no no-arg init method) still close dependants eagerly.
+     */
+    public Compiler lazyInvalidation() {
+        lazyInvalidation = true;
+        return this;
+    }
+
+    /**
+     * Generate a guard-free fast path version of each public method of the root class, taken
+     * when a single combined check shows that all stages, accessed in the method, are already
+     * init.
+     *
+     * @see EntryMethodVersioning
+     */
+    public Compiler versionEntryMethods() {
+        versionEntryMethods = true;
+        return this;
+    }
+
+    /**
+     * Declare stage fields so that the fields of stages, used together, are adjacent within
+     * each group of fields of the same size, which HotSpot lays out contiguously.
+     *
+     * @see #getFieldLayoutReport()
+     * @see FieldLayout
+     */
+    public Compiler layOutFields() {
+        layOutFields = true;
+        return this;
+    }
+
+    /**
+     * In addition to {@link #layOutFields()}, pad the fields with unused long fields, for
+     * contexts which are shared across threads.
+     */
+    public Compiler padFields() {
+        layOutFields = true;
+        padFields = true;
+        return this;
+    }
+
+    /**
+     * Returns on which cache lines the fields of stages, used from the public methods of the
+     * root class, end up, found during the last {@link #compile()}, if {@link #layOutFields()}
+     * is on.
+     */
+    public List<String> getFieldLayoutReport() {
+        return fieldLayoutReport;
+    }
+
+    /**
+     * Move fields and methods of child compilation nodes into the root merged class, instead of
+     * nested classes, referenced by final fields, so that the context is a single object and
+     * accesses to other nodes don't dereference anything.
+     *
+     * @see NodeFlattening
+     */
+    public Compiler flattenChildNodes() {
+        flattenChildNodes = true;
+        return this;
+    }
+
+    /**
+     * Access stages, which are init in constructors and couldn't be closed or re-init other than
+     * by the global close, as plain fields: without guards, init checks and close methods.
+     *
+     * @see AlwaysInitStages
+     */
+    public Compiler eliminateAlwaysInitStages() {
+        eliminateAlwaysInitStages = true;
+        return this;
+    }
+
+    /**
+     * Remove stages and methods, annotated with {@link Feature} of any of the given features,
+     * from the compiled context. Statement calls to removed methods are dropped, other uses
+     * of removed stages and methods from kept code are compilation errors.
+     *
+     * @see FeaturePruning
+     */
+    public Compiler disableFeatures(String... features) {
+        disabledFeatures.addAll(Arrays.asList(features));
+        return this;
+    }
+
+    /**
+     * Remove stages and methods, which are not reachable from public methods of the root
+     * compilation node, methods implementing external interfaces, and code outside stages and
+     * methods, e. g. parts of generic staged base classes, not used in the compiled context.
+     *
+     * @see #getEliminatedNodeCount()
+     * @see DeadStageElimination
+     */
+    public Compiler eliminateUnreachableNodes() {
+        eliminateUnreachableNodes = true;
+        return this;
+    }
+
+    /**
+     * The number of stages and method nodes, removed during the last {@link #compile()}, if
+     * {@link #eliminateUnreachableNodes()} is on.
+     */
+    public int getEliminatedNodeCount() {
+        return eliminatedNodeCount;
+    }
+
+    /**
+     * Make parameterized init methods of stages return straight away, without running the body
+     * and closing dependants, if the stage is ready and was init by the same method with equal
+     * arguments. Arguments of the last init are kept in fields of the merged class. Stage
+     * state, changed by stage methods after the init, is not re-init on such calls.
+     */
+    public Compiler shortCircuitSameArgumentInits() {
+        shortCircuitSameArgumentInits = true;
+        return this;
+    }
+
+    /**
+     * Group stages, which are init only by init methods of their single dependant stage, with
+     * that stage: eliminate their guards from the dependant's stage methods and close them
+     * together with the dependant. Grouped stages keep their own init state and guards outside
+     * the group. Not applied with {@link #lazyInvalidation()}. Stages, declared {@link
+     * GroupedWith} another stage, are grouped regardless of this option.
+     *
+     * @see StageGroups
+     */
+    public Compiler groupStages() {
+        groupStages = true;
+        return this;
+    }
+
+    /**
+     * Make merged classes final, and their methods private or final, so that calls within the
+     * context are statically bound, not depending on class hierarchy analysis of the JIT.
+     *
+     * @see Devirtualization
+     */
+    public Compiler devirtualize() {
+        devirtualize = true;
+        return this;
+    }
+
+    /**
+     * Generate a nested {@code Pool} class of the root merged class, leasing out context
+     * instances and putting them back after the global close.
+     *
+     * @see ContextPool
+     */
+    public Compiler generatePool() {
+        generatePool = true;
+        return this;
+    }
+
+    /**
+     * Generate {@code copyStateFrom(other)} method of the root class, closing the context and
+     * copying the state of all stages, init in the other context, so that new contexts could be
+     * init from a warmed up template, without running init methods.
+     *
+     * @see StateCopy
+     */
+    public Compiler generateCopyStateFrom() {
+        generateCopyStateFrom = true;
+        return this;
+    }
+
+    /**
+     * Generate {@code newCheckpoint()}, {@code checkpoint(checkpoint)} and {@code
+     * rollbackTo(checkpoint)} methods of the root class. Rollback closes only the stages, init
+     * since the checkpoint, dependant stages first, keeping the rest init. Implies {@link
+     * #trackStagesToClose()}.
+     */
+    public Compiler generateCheckpoints() {
+        generateCheckpoints = true;
+        trackStagesToClose = true;
+        return this;
+    }
+
+    /**
+     * Count inits, closes, cascade closes and slow guard paths of each stage at runtime, when
+     * {@code net.openhft.sg.stageStats} system property is true. The root class gets
+     * {@code stageCounters()} and {@code initStages()} methods, reading the counters and
+     * the set of currently init stages.
+     *
+     * @see StageInstrumentation
+     */
+    public Compiler instrumentStages() {
+        instrumentStages = true;
+        return this;
+    }
+
+    /**
+     * Additionally to {@link #instrumentStages()}, commit a JFR event for each stage init,
+     * taking longer than the given threshold, when {@code net.openhft.sg.stageInitEvents}
+     * system property is true.
+     */
+    public Compiler instrumentStages(long slowInitThresholdNanos) {
+        if (slowInitThresholdNanos < 0)
+            throw new IllegalArgumentException("Negative threshold: " + slowInitThresholdNanos);
+        instrumentStages = true;
+        this.slowInitThresholdNanos = slowInitThresholdNanos;
+        return this;
+    }
+
+    /**
+     * Time each {@code sampleRate}-th init of each stage (the rate should be a power of two)
+     * into per-context histograms, when {@code net.openhft.sg.stageInitLatencies} system
+     * property is true. The root class gets {@code addInitLatenciesTo(Map)} method, merging
+     * the histograms of the context into the given ones.
+     *
+     * @see StageInstrumentation
+     */
+    public Compiler sampleInitLatencies(int sampleRate) {
+        if (sampleRate <= 0 || Integer.bitCount(sampleRate) != 1)
+            throw new IllegalArgumentException("Sample rate should be a power of two: " +
+                    sampleRate);
+        initSampleRate = sampleRate;
+        return this;
+    }
+
+    /**
+     * Write a record on each stage init, close and cascade close into a ring buffer of the
+     * given number of records, when {@code net.openhft.sg.stageTrace} system property is true.
+     *
+     * @see StageInstrumentation
+     * @see StageTraceReader
+     */
+    public Compiler traceStages(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity should be positive: " + capacity);
+        traceCapacity = capacity;
+        return this;
+    }
+
+    /**
+     * Returns names of stages by their ids in trace records, if {@link #traceStages(int)} is
+     * on, after {@link #compile()}.
+     */
+    public List<String> getTracedStageNames() {
+        return tracedStageNames;
+    }
+
+    /**
+     * Compile stages depending on their runtime statistics, collected with {@link
+     * #instrumentStages()}: outline slow init paths of cold stages, don't generate fast paths
+     * of entry methods, accessing stages which are usually not init, order fields of hot
+     * stages first, group stages with their only dependant, if they are init together.
+     *
+     * @see StageProfile
+     */
+    public Compiler useProfile(StageProfile profile) {
+        this.profile = profile;
+        return this;
+    }
+
     public CtClass<?> compile() {
+        cxt.allCompilationNodes().forEach(CompilationNode::specializeTypeParameters);
+        if (!disabledFeatures.isEmpty())
+            new FeaturePruning(cxt, disabledFeatures).prune();
         computeAccessPaths();
         createNodes();
         checkFieldsAssignedOnlyWithinNodes();
         linkDependencyNodes();
         checkNoCyclicNodeDeps();
+        if (eliminateUnreachableNodes) {
+            eliminatedNodeCount =
+                    new DeadStageElimination(cxt, root).eliminateUnreachableNodes();
+        }
         printNodeStats();
+        if (eliminateAlwaysInitStages)
+            new AlwaysInitStages(cxt).markAlwaysInitStages();
+        assignInitBits();
+        if (trackStagesToClose)
+            assignCloseBits();
+        if (outlineSlowInitPaths)
+            cxt.allStageModels().forEach(StageModel::outlineSlowInitPath);
+        else if (profile != null)
+            cxt.allStageModels().filter(profile::cold).forEach(StageModel::outlineSlowInitPath);
+        if (shortCircuitSameArgumentInits) {
+            cxt.allStageModels().filter(s -> !s.alwaysInit())
+                    .forEach(StageModel::shortCircuitSameArgumentInits);
+        }
+        if (flattenCloseCascades)
+            cxt.allNodes().forEach(DependencyNode::flattenCloseCascade);
+        if (lazyInvalidation) {
+            CtField<Long> stageEpoch = root.f.Field().create(root.classesToMerge.get(0),
+                    EnumSet.noneOf(ModifierKind.class), root.f.Type().LONG_PRIMITIVE,
+                    "stageEpoch");
+            cxt.allStageModels().forEach(s -> s.enableLazyInvalidation(root, stageEpoch));
+        }
+        StageInstrumentation instrumentation = null;
+        if (instrumentStages || initSampleRate > 0 || traceCapacity > 0) {
+            instrumentation = new StageInstrumentation(root, instrumentStages,
+                    slowInitThresholdNanos, initSampleRate, traceCapacity);
+            cxt.allStageModels().filter(s -> !s.alwaysInit())
+                    .forEach(instrumentation::instrument);
+            tracedStageNames = instrumentation.getTracedStageNames();
+        }
         guardFieldsAccess();
         guardStageMethodCalls();
+        if (!lazyInvalidation) {
+            new StageGroups(cxt, profile).groupStages(groupStages);
+        } else if (cxt.allStageModels().anyMatch(s -> s.getDeclaredGroupedWith() != null)) {
+            throw sgce("Stages couldn't be grouped with other stages with lazy invalidation");
+        }
+        if (eliminateRedundantGuards)
+            new GuardElimination(cxt).eliminateRedundantGuards();
+        if (versionEntryMethods)
+            new EntryMethodVersioning(cxt, root, profile).versionEntryMethods();
         declareAndPrepareEverything();
         cxt.allClasses().forEach(CtElement::updateAllParentsBelow);
         replaceStageRefAccesses();
         cxt.allClasses().forEach(CtElement::updateAllParentsBelow);
         removeExtraFields();
-        generateGlobalClose();
+        CtMethod<Void> globalClose = generateGlobalClose();
+        if (instrumentation != null)
+            instrumentation.generateSnapshotMethods(stageModelsToClose());
+        if (generateCopyStateFrom)
+            generateCopyStateFrom(globalClose);
+        if (generateCheckpoints)
+            generateCheckpointMethods();
+        if (checkMethodSizes)
+            outlineHugeGeneratedCode(globalClose);
         cxt.allClasses().map(Compiler::stagedClassExtensionChain)
                 .forEach(ExtensionChains::mergeStagedChain);
         if (mergedClassName != null)
@@ -91,13 +511,31 @@ public class Compiler {
         mergedClasses.forEach(CtElement::updateAllParentsBelow);
         root.mergeChildNodes();
         root.getMergedClass().updateAllParentsBelow();
+        root.instantiateLazyChildNodesOnAccess(root.getMergedClass());
+        root.getMergedClass().updateAllParentsBelow();
         sortMembers();
         updateFieldTypes();
         sortFinals();
+        if (layOutFields)
+            applyFieldLayout();
         generateFinalAccessors();
         removeAllStageAnnotations(root.getMergedClass());
         updateTypes(root.getMergedClass());
         root.getMergedClass().updateAllParentsBelow();
+        if (checkMethodSizes)
+            methodSizeWarnings = MethodSizes.userMethodWarnings(root.getMergedClass());
+        if (flattenChildNodes) {
+            NodeFlattening.flattenChildNodes(root.getMergedClass(), root);
+            root.getMergedClass().updateAllParentsBelow();
+        }
+        if (instrumentation != null) {
+            // after final accessors are generated, the switches don't need them
+            instrumentation.generateSwitches(root.getMergedClass());
+        }
+        if (generatePool)
+            ContextPool.generatePool(root.getMergedClass());
+        if (devirtualize)
+            new Devirtualization(root.getMergedClass(), cxt).devirtualize();
         return root.getMergedClass();
     }
 
@@ -278,6 +716,43 @@ public class Compiler {
         return copy;
     }
 
+    /**
+     * Init states of stages with specialized uninit values are packed even if {@link
+     * #packInitStates()} is not set, because their init fields don't have a distinguished
+     * uninit value.
+     */
+    private void assignInitBits() {
+        // allocate bits in topological order, so that stages which are likely to be checked
+        // together share the same word
+        topologicallySorted(cxt.allStageModels().collect(toList())).stream()
+                .filter(StageModel::canPackInitState)
+                .filter(stage -> packInitStates || stage.initFieldSpecialized())
+                .forEach(stage -> stage.assignInitBit(
+                        cxt.getCompilationNode(stage.declaringType).allocateInitBit()));
+    }
+
+    private void assignCloseBits() {
+        List<StageModel> stageModels = stageModelsToClose();
+        CtClass<?> rootClass = root.classesToMerge.get(0);
+        for (int i = 0; i < stageModels.size(); i++) {
+            if ((i & 63) == 0) {
+                root.f.Field().create(rootClass, EnumSet.noneOf(ModifierKind.class),
+                        root.f.Type().LONG_PRIMITIVE, stagesToCloseWordName(i));
+            }
+            stageModels.get(i).assignCloseBit(i);
+        }
+    }
+
+    private List<StageModel> stageModelsToClose() {
+        return topologicallySorted(cxt.allStageModels().collect(toList())).stream()
+                .filter(stage -> !stage.alwaysInit())
+                .collect(toList());
+    }
+
+    static String stagesToCloseWordName(int closeBitIndex) {
+        return "stagesToClose" + (closeBitIndex >>> 6);
+    }
+
     private void guardFieldsAccess() {
         cxt.allNodes().forEach(node -> {
             List<CtFieldAccess<?>> fieldAccesses =
@@ -286,7 +761,7 @@ public class Compiler {
                 CtField<?> field = fa.getVariable().getDeclaration();
                 if (field != null) {
                     StageModel stage = cxt.getStageModel(field);
-                    if (stage != null && stage != node) {
+                    if (stage != null && stage != node && !stage.alwaysInit()) {
                         CtExpression<?> target = fa.getTarget();
                         CtTargetedExpression<?, CtExpression<?>> access =
                                 stage.fieldAccess(target, field);
@@ -313,7 +788,7 @@ public class Compiler {
                     return;
                 CtMethod<?> method = (CtMethod<?>) declaration;
                 StageModel stage = cxt.getStageModelByStageMethod(method);
-                if (stage != null && stage != node) {
+                if (stage != null && stage != node && !stage.alwaysInit()) {
                     CtTargetedExpression guardedInvocation =
                             stage.guardedStageMethodCall((CtInvocation) invocation, method);
                     CtExpression<?> target = invocation.getTarget();
@@ -557,7 +1032,9 @@ public class Compiler {
                         TypeFactory tf = a.getFactory().Type();
                         return annType.equals(tf.createReference(Stage.class)) ||
                                 annType.equals(tf.createReference(Staged.class)) ||
-                                annType.equals(tf.createReference(StageRef.class));
+                                annType.equals(tf.createReference(StageRef.class)) ||
+                                annType.equals(tf.createReference(Feature.class)) ||
+                                annType.equals(tf.createReference(GroupedWith.class));
                     }).collect(toList());
             if (!stagedAnnotations.isEmpty()) {
                 stagedAnnotations.forEach(e::removeAnnotation);
@@ -622,24 +1099,171 @@ public class Compiler {
         });
     }
     
-    void generateGlobalClose() {
+    private void outlineHugeGeneratedCode(CtMethod<Void> globalClose) {
+        cxt.allNodes().forEach(node ->
+                node.getCloseDependantsMethod().ifPresent(MethodSizes::outlineIfHuge));
+        cxt.allStageModels().forEach(StageModel::outlineHugeInitMethods);
+        MethodSizes.outlineIfHuge(globalClose);
+    }
+
+    private void applyFieldLayout() {
+        FieldLayout layout = new FieldLayout(cxt, root, profile);
+        cxt.allCompilationNodes().map(CompilationNode::getMergedClass)
+                .forEach(mergedClass -> layout.layOut(mergedClass, padFields));
+        fieldLayoutReport = layout.getReport();
+    }
+
+    CtMethod<Void> generateGlobalClose() {
         Factory f = root.f;
         CtBlock<Void> closeBody = f.Core().createBlock();
-        List<StageModel> stageModels =
-                topologicallySorted(cxt.allStageModels().collect(Collectors.toList()));
-        Collections.reverse(stageModels); // close dependant stages first
-        stageModels.forEach(stage -> {
-            CompilationNode refNode = cxt.getCompilationNode(stage.declaringType);
-            CtExpression<?> access = root.access(refNode, AccessType.Read);
-            closeBody.addStatement(
-                    f.Code().createInvocation(access, stage.getDoCloseMethod().getReference()));
-        });
+        List<StageModel> stageModels = stageModelsToClose();
+        if (trackStagesToClose) {
+            generateTrackedGlobalClose(closeBody, stageModels);
+        } else {
+            Collections.reverse(stageModels); // close dependant stages first
+            stageModels.forEach(stage -> closeBody.addStatement(doCloseInvocation(stage)));
+        }
         CtClass rootClass = root.classesToMerge.get(0);
         rootClass.addSuperInterface(f.Type().createReference(AutoCloseable.class));
-        f.Method().create(rootClass, EnumSet.of(PUBLIC), f.Type().VOID_PRIMITIVE, "close",
+        return f.Method().create(rootClass, EnumSet.of(PUBLIC), f.Type().VOID_PRIMITIVE, "close",
                 emptyList(), Collections.emptySet(), closeBody);
     }
 
+    private void generateCopyStateFrom(CtMethod<Void> globalClose) {
+        List<StageModel> stageModels = stageModelsToClose();
+        CtClass<?> rootClass = root.classesToMerge.get(0);
+        List<CtField<?>> rootStateFields = new ArrayList<>();
+        if (trackStagesToClose) {
+            for (int i = 0; i < stageModels.size(); i += 64) {
+                rootStateFields.add(rootClass.getField(stagesToCloseWordName(i)));
+            }
+        }
+        if (lazyInvalidation)
+            rootStateFields.add(rootClass.getField("stageEpoch"));
+        StateCopy.generateCopyStateFrom(cxt, root, globalClose, stageModels, rootStateFields);
+    }
+
+    private CtInvocation<Void> doCloseInvocation(StageModel stage) {
+        CompilationNode refNode = cxt.getCompilationNode(stage.declaringType);
+        CtExpression<?> access = root.access(refNode, AccessType.Read);
+        return root.f.Code().createInvocation(access, stage.getDoCloseMethod().getReference());
+    }
+
+    /**
+     * Stage close bits are assigned in topological order, so iterating from the highest set
+     * bit of the highest word to the lowest closes dependant stages first, the same as
+     * non-tracked global close does.
+     */
+    private void generateTrackedGlobalClose(CtBlock<Void> closeBody, List<StageModel> stageModels) {
+        for (int word = (stageModels.size() - 1) >>> 6; word >= 0; word--) {
+            closeBody.addStatement(
+                    closeWordStages(stageModels, word, "0L", this::doCloseInvocation));
+        }
+    }
+
+    /**
+     * Closes stages, which bits are set in the given "stages to close" word, but not in the
+     * {@code keep} mask, from the highest bit to the lowest, and clears their bits. Each word is
+     * processed in a separate block, to allow outlining them.
+     */
+    private CtBlock<Void> closeWordStages(List<StageModel> stageModels, int word, String keep,
+            Function<StageModel, CtInvocation<Void>> closeInvocation) {
+        Factory f = root.f;
+        CtBlock<Void> wordBlock = f.Core().createBlock();
+        String wordName = stagesToCloseWordName(word << 6);
+        if (keep.equals("0L")) {
+            wordBlock.addStatement(f.Code().createCodeSnippetStatement(
+                    "long stagesToClose = this." + wordName));
+            wordBlock.addStatement(f.Code().createCodeSnippetStatement(
+                    "this." + wordName + " = 0L"));
+        } else {
+            wordBlock.addStatement(f.Code().createCodeSnippetStatement(
+                    "long stagesToClose = this." + wordName + " & ~" + keep));
+            wordBlock.addStatement(f.Code().createCodeSnippetStatement(
+                    "this." + wordName + " &= " + keep));
+        }
+
+        CtSwitch<Integer> stageSwitch = f.Core().createSwitch();
+        stageSwitch.setSelector(f.Code().createCodeSnippetExpression("stage"));
+        for (int i = word << 6; i < min(stageModels.size(), (word + 1) << 6); i++) {
+            CtCase<Integer> stageCase = f.Core().createCase();
+            stageCase.setCaseExpression(f.Code().createLiteral(i & 63));
+            stageCase.addStatement(closeInvocation.apply(stageModels.get(i)));
+            stageCase.addStatement(f.Core().createBreak());
+            stageSwitch.addCase(stageCase);
+        }
+
+        CtBlock<Void> loopBody = f.Core().createBlock();
+        loopBody.addStatement(f.Code().createCodeSnippetStatement(
+                "int stage = 63 - java.lang.Long.numberOfLeadingZeros(stagesToClose)"));
+        loopBody.addStatement(f.Code().createCodeSnippetStatement(
+                "stagesToClose ^= 1L << stage"));
+        loopBody.addStatement(stageSwitch);
+        CtWhile loop = f.Core().createWhile();
+        loop.setLoopingExpression(
+                f.Code().createCodeSnippetExpression("stagesToClose != 0L"));
+        loop.setBody(loopBody);
+        wordBlock.addStatement(loop);
+        return wordBlock;
+    }
+
+    /**
+     * A checkpoint is a copy of the "stages to close" words, into an array allocated once by
+     * {@code newCheckpoint()}, so that taking checkpoints doesn't allocate. Stages, init since
+     * the checkpoint, are closed via their checking close methods, rather than doClose, because
+     * they might be already closed, explicitly or by a cascade close. Stages, init at the
+     * checkpoint, are kept, even if they are re-init since then.
+     */
+    private void generateCheckpointMethods() {
+        Factory f = root.f;
+        List<StageModel> stageModels = stageModelsToClose();
+        CtClass<?> rootClass = root.classesToMerge.get(0);
+        int words = (stageModels.size() + 63) >>> 6;
+        CtTypeReference<long[]> checkpointType =
+                (CtTypeReference) f.Type().createArrayReference(f.Type().LONG_PRIMITIVE);
+        String checkCheckpoint = "if (checkpoint.length != " + words + ") throw new java.lang." +
+                "IllegalArgumentException(\"Not a checkpoint of this context\")";
+
+        CtBlock<long[]> newCheckpointBody = f.Core().createBlock();
+        newCheckpointBody.addStatement(f.Code().createCodeSnippetStatement(
+                "return new long[" + words + "]"));
+        f.Method().create(rootClass, EnumSet.of(PUBLIC), checkpointType, "newCheckpoint",
+                emptyList(), emptySet(), newCheckpointBody);
+
+        CtBlock<Void> checkpointBody = f.Core().createBlock();
+        checkpointBody.addStatement(f.Code().createCodeSnippetStatement(checkCheckpoint));
+        for (int word = 0; word < words; word++) {
+            checkpointBody.addStatement(f.Code().createCodeSnippetStatement(
+                    "checkpoint[" + word + "] = this." + stagesToCloseWordName(word << 6)));
+        }
+        f.Method().create(rootClass, EnumSet.of(PUBLIC), f.Type().VOID_PRIMITIVE, "checkpoint",
+                singletonList(checkpointParameter(checkpointType)), emptySet(),
+                checkpointBody);
+
+        CtBlock<Void> rollbackBody = f.Core().createBlock();
+        rollbackBody.addStatement(f.Code().createCodeSnippetStatement(checkCheckpoint));
+        for (int word = words - 1; word >= 0; word--) {
+            rollbackBody.addStatement(closeWordStages(stageModels, word,
+                    "checkpoint[" + word + "]", this::closeInvocation));
+        }
+        f.Method().create(rootClass, EnumSet.of(PUBLIC), f.Type().VOID_PRIMITIVE, "rollbackTo",
+                singletonList(checkpointParameter(checkpointType)), emptySet(), rollbackBody);
+    }
+
+    private CtParameter<long[]> checkpointParameter(CtTypeReference<long[]> checkpointType) {
+        CtParameter<long[]> checkpoint = root.f.Core().createParameter();
+        checkpoint.setType(checkpointType);
+        checkpoint.setSimpleName("checkpoint");
+        return checkpoint;
+    }
+
+    private CtInvocation<Void> closeInvocation(StageModel stage) {
+        CompilationNode refNode = cxt.getCompilationNode(stage.declaringType);
+        CtExpression<?> access = root.access(refNode, AccessType.Read);
+        return root.f.Code().createInvocation(access,
+                stage.getCloseMethod().get().getReference());
+    }
+
     private void printNodeStats() {
         System.out.println("stage model count: " + cxt.allStageModels().count());
         System.out.println("total node count: " + cxt.allNodes().count());
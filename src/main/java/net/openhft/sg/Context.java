@@ -27,4 +27,16 @@ import java.lang.annotation.Target;
 public @interface Context {
     Class[] topLevel();
     Class[] nested();
+
+    /**
+     * Nested classes, instantiated lazily, on the first access.
+     *
+     * @see CompilationNode#instantiateLazily()
+     */
+    Class[] lazyNested() default {};
+
+    /**
+     * @see Compiler#disableFeatures(String...)
+     */
+    String[] disabledFeatures() default {};
 }
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg;
+
+import spoon.reflect.code.CtBlock;
+import spoon.reflect.code.CtFor;
+import spoon.reflect.code.CtStatement;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtConstructor;
+import spoon.reflect.declaration.CtParameter;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtTypeReference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+
+import static java.util.Collections.singletonList;
+import static net.openhft.sg.StageGraphCompilationException.sgce;
+import static spoon.reflect.declaration.ModifierKind.*;
+
+/**
+ * Generates a {@code Pool} nested class of the root merged class: a bounded pool of context
+ * instances, in an {@code AtomicReferenceArray}. {@code acquire()} takes an instance from any
+ * non-empty slot, or creates a new one if the pool is empty, {@code release()} runs the global
+ * {@code close()} and puts the instance to an empty slot, or drops it, if the pool is full.
+ *
+ * <p>The pool is lock-free and doesn't rely on thread-local state, so it doesn't pin carrier
+ * threads of virtual threads. Slots are scanned starting from a position depending on the
+ * thread id, to spread contention.
+ */
+final class ContextPool {
+
+    private ContextPool() {}
+
+    static void generatePool(CtClass<?> rootClass) {
+        if (rootClass.getConstructors().stream().noneMatch(c -> c.getParameters().isEmpty())) {
+            throw sgce("Pool could be generated only for a context with a no-arg " +
+                    "constructor, " + rootClass.getSimpleName());
+        }
+        Factory f = rootClass.getFactory();
+        String cxtType = rootClass.getQualifiedName();
+        CtClass<?> pool = f.Class().create(rootClass, "Pool");
+        pool.setModifiers(EnumSet.of(PUBLIC, STATIC, FINAL));
+
+        CtTypeReference<?> instancesType = f.Type().createReference(
+                "java.util.concurrent.atomic.AtomicReferenceArray");
+        instancesType.setActualTypeArguments(singletonList(rootClass.getReference()));
+        f.Field().create(pool, EnumSet.of(PRIVATE, FINAL), instancesType, "instances");
+
+        CtParameter<Integer> capacity = f.Core().createParameter();
+        capacity.setType(f.Type().INTEGER_PRIMITIVE);
+        capacity.setSimpleName("capacity");
+        CtBlock<Object> constructorBody = f.Core().createBlock();
+        constructorBody.addStatement(f.Code().createCodeSnippetStatement(
+                "if (capacity <= 0) throw new java.lang.IllegalArgumentException(" +
+                        "\"capacity should be positive: \" + capacity)"));
+        constructorBody.addStatement(f.Code().createCodeSnippetStatement(
+                "this.instances = new java.util.concurrent.atomic.AtomicReferenceArray<>(" +
+                        "capacity)"));
+        CtConstructor<?> constructor = f.Constructor().create((CtClass) pool,
+                EnumSet.of(PUBLIC), singletonList(capacity), Collections.emptySet(),
+                constructorBody);
+        constructor.setParent(pool);
+
+        CtBlock<Object> acquireBody = f.Core().createBlock();
+        acquireBody.addStatement(slotScan(f,
+                cxtType + " cxt = instances.get(slot)",
+                "if (cxt != null && instances.compareAndSet(slot, cxt, null)) return cxt"));
+        acquireBody.addStatement(f.Code().createCodeSnippetStatement(
+                "return new " + cxtType + "()"));
+        f.Method().create(pool, EnumSet.of(PUBLIC), (CtTypeReference) rootClass.getReference(),
+                "acquire", Collections.emptyList(), Collections.emptySet(), acquireBody);
+
+        CtParameter<?> cxt = f.Core().createParameter();
+        cxt.setType((CtTypeReference) rootClass.getReference());
+        cxt.setSimpleName("cxt");
+        CtBlock<Void> releaseBody = f.Core().createBlock();
+        releaseBody.addStatement(f.Code().createCodeSnippetStatement("cxt.close()"));
+        releaseBody.addStatement(slotScan(f,
+                "if (instances.get(slot) == null && " +
+                        "instances.compareAndSet(slot, null, cxt)) return"));
+        f.Method().create(pool, EnumSet.of(PUBLIC), f.Type().VOID_PRIMITIVE, "release",
+                singletonList(cxt), Collections.emptySet(), releaseBody);
+    }
+
+    /**
+     * Runs the statements for each slot, starting from a thread-dependent one.
+     */
+    private static CtBlock<?> slotScan(Factory f, String... loopStatements) {
+        CtBlock<?> block = f.Core().createBlock();
+        block.addStatement(f.Code().createCodeSnippetStatement(
+                "int n = instances.length()"));
+        block.addStatement(f.Code().createCodeSnippetStatement(
+                "int slot = (int) (java.lang.Thread.currentThread().getId() % n)"));
+        CtFor loop = f.Core().createFor();
+        List<CtStatement> init = new ArrayList<>();
+        init.add(f.Code().createCodeSnippetStatement("int i = 0"));
+        loop.setForInit(init);
+        loop.setExpression(f.Code().createCodeSnippetExpression("i < n"));
+        List<CtStatement> update = new ArrayList<>();
+        update.add(f.Code().createCodeSnippetStatement("i++"));
+        update.add(f.Code().createCodeSnippetStatement("slot = slot + 1 < n ? slot + 1 : 0"));
+        loop.setForUpdate(update);
+        CtBlock<?> loopBody = f.Core().createBlock();
+        for (String statement : loopStatements) {
+            loopBody.addStatement(f.Code().createCodeSnippetStatement(statement));
+        }
+        loop.setBody(loopBody);
+        block.addStatement(loop);
+        return block;
+    }
+}
@@ -128,7 +128,17 @@ public class ContextProcessor extends AbstractProcessor {
                     root.createChild().addClassToMerge(nestedClass).eraseTypeParameters();
                 }
 
+                for (TypeMirror nestedClassMirror :
+                        getOptionalAnnotationValue(cxtAnn, "lazyNested")) {
+                    CtClass<Object> nestedClass = factory.Class().get(
+                            asTypeElement(nestedClassMirror).getQualifiedName().toString());
+                    root.createChild().addClassToMerge(nestedClass).eraseTypeParameters()
+                            .instantiateLazily();
+                }
+
                 Compiler compiler = new Compiler(root);
+                compiler.disableFeatures(getStringAnnotationValues(cxtAnn, "disabledFeatures")
+                        .toArray(new String[0]));
 
                 compiler.setMergedClassName(mergedClassName);
                 CtClass<?> resultClass = compiler.compile();
@@ -181,6 +191,36 @@ public class ContextProcessor extends AbstractProcessor {
         throw new AssertionError();
     }
 
+    /**
+     * Unlike {@link #getAnnotationValue}, returns an empty list, if the value is not specified
+     * explicitly.
+     */
+    private static List<TypeMirror> getOptionalAnnotationValue(
+            AnnotationMirror annotationMirror, String key) {
+        for(Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry :
+                annotationMirror.getElementValues().entrySet() ) {
+            if(entry.getKey().getSimpleName().toString().equals(key))
+                return getAnnotationValue(annotationMirror, key);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Unlike {@link #getAnnotationValue}, returns an empty list, if the value is not specified
+     * explicitly.
+     */
+    private static List<String> getStringAnnotationValues(
+            AnnotationMirror annotationMirror, String key) {
+        for(Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry :
+                annotationMirror.getElementValues().entrySet() ) {
+            if(entry.getKey().getSimpleName().toString().equals(key)) {
+                return ((List<AnnotationValue>) entry.getValue().getValue())
+                        .stream().map(av -> (String) av.getValue()).collect(toList());
+            }
+        }
+        return Collections.emptyList();
+    }
+
     private TypeElement asTypeElement(TypeMirror typeMirror) {
         Types typeUtils = this.processingEnv.getTypeUtils();
         return (TypeElement) typeUtils.asElement(typeMirror);
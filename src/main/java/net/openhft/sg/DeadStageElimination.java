@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg;
+
+import spoon.reflect.code.CtBlock;
+import spoon.reflect.declaration.*;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtExecutableReference;
+import spoon.reflect.reference.CtFieldReference;
+import spoon.reflect.reference.CtReference;
+import spoon.reflect.reference.CtTypeReference;
+
+import java.util.*;
+import java.util.stream.Stream;
+
+import static java.util.Collections.emptyList;
+import static java.util.stream.Collectors.toList;
+import static net.openhft.sg.Compiler.stagedClassExtensionChain;
+import static spoon.reflect.declaration.ModifierKind.PROTECTED;
+import static spoon.reflect.declaration.ModifierKind.PUBLIC;
+
+/**
+ * Removes stages and method nodes, unreachable from the code which could be called from the
+ * outside of the compiled context: public and protected methods of the root compilation node,
+ * methods implementing methods of external (not staged) types, and code of staged classes which
+ * doesn't belong to any node (constructors, initializers, static methods, final fields). A node
+ * is reachable from a dependant, and from a node, referencing any of its fields or methods,
+ * including init and close methods, which calls are not dependencies.
+ *
+ * <p>Unreachable methods implementing methods of staged interfaces are kept with bodies
+ * throwing {@link UnsupportedOperationException}, because the merged class should still
+ * implement the interface. Stages, which fields are accessed via generated access methods, are
+ * always reachable.
+ */
+final class DeadStageElimination {
+
+    private final CompilationContext cxt;
+    private final CompilationNode root;
+    private final Map<CtTypeMember, DependencyNode> memberToNode = new IdentityHashMap<>();
+    private final Map<String, List<DependencyNode>> nodesByMethodName = new HashMap<>();
+    private final Set<DependencyNode> reachable = new HashSet<>();
+    private final Deque<DependencyNode> toVisit = new ArrayDeque<>();
+
+    DeadStageElimination(CompilationContext cxt, CompilationNode root) {
+        this.cxt = cxt;
+        this.root = root;
+        cxt.allNodes().forEach(node -> members(node).forEach(member -> {
+            memberToNode.put(member, node);
+            if (member instanceof CtMethod) {
+                nodesByMethodName.computeIfAbsent(((CtMethod<?>) member).getSimpleName(),
+                        n -> new ArrayList<>()).add(node);
+            }
+        }));
+    }
+
+    private static List<? extends CtTypeMember> members(DependencyNode node) {
+        return node instanceof StageModel ?
+                ((StageModel) node).members() : ((MethodNode) node).getMethods();
+    }
+
+    /**
+     * Returns the number of eliminated nodes.
+     */
+    int eliminateUnreachableNodes() {
+        List<DependencyNode> nodes = cxt.allNodes().collect(toList());
+        nodes.stream().filter(this::entry).forEach(this::reach);
+        cxt.allClasses().flatMap(c -> stagedClassExtensionChain(c).stream()).distinct()
+                .flatMap(DeadStageElimination::typeMembers)
+                .filter(member -> !memberToNode.containsKey(member))
+                .forEach(member -> member.getElements((CtReference ref) -> true)
+                        .forEach(this::reachReferenced));
+        DependencyNode node;
+        while ((node = toVisit.poll()) != null) {
+            node.getDependencies().forEach(this::reach);
+            node.filterBlocksForBuildingDeps((CtReference ref) -> true)
+                    .forEach(this::reachReferenced);
+        }
+
+        List<DependencyNode> unreachable = nodes.stream().filter(n -> !reachable.contains(n))
+                .collect(toList());
+        for (DependencyNode unreachableNode : unreachable) {
+            unreachableNode.getDependencies().forEach(d -> d.removeDependant(unreachableNode));
+            cxt.unbind(unreachableNode);
+            cxt.allCompilationNodes().forEach(compilationNode ->
+                    compilationNode.interfaceMethodToNode.values()
+                            .removeIf(n -> n == unreachableNode));
+            members(unreachableNode).forEach(member -> remove(unreachableNode, member));
+        }
+        return unreachable.size();
+    }
+
+    private static Stream<CtElement> typeMembers(CtClass<?> c) {
+        return Stream.of(c.getFields(), c.getMethods(), c.getConstructors(),
+                c.getAnonymousExecutables(), c.getNestedTypes())
+                .flatMap(Collection::stream);
+    }
+
+    private boolean entry(DependencyNode node) {
+        if (node instanceof StageModel && ((StageModel) node).implementsAccessMethods())
+            return true;
+        boolean inRoot = cxt.getNodeByAnyStagedClass(node.declaringType) == root;
+        List<CtMethod<?>> declaredMethods = node instanceof StageModel ?
+                ((StageModel) node).declaredMethods() : ((MethodNode) node).getMethods();
+        return declaredMethods.stream()
+                .anyMatch(method -> (inRoot && (method.hasModifier(PUBLIC) ||
+                        method.hasModifier(PROTECTED))) ||
+                        overridesSupertypeMethod(node.declaringType, method, false));
+    }
+
+    /**
+     * If the method overrides a method of a supertype of the staged extension chain, declared
+     * in a staged type, or in an external (not staged) type or {@link Object}.
+     */
+    private static boolean overridesSupertypeMethod(
+            CtClass<?> declaringType, CtMethod<?> method, boolean staged) {
+        List<CtClass<?>> chain = stagedClassExtensionChain(declaringType);
+        return chain.stream().anyMatch(c -> {
+            List<CtTypeReference<?>> supertypes = new ArrayList<>(c.getSuperInterfaces());
+            if (c.getSuperclass() != null &&
+                    chain.stream().noneMatch(s -> s == c.getSuperclass().getDeclaration())) {
+                supertypes.add(c.getSuperclass());
+            }
+            supertypes.add(c.getFactory().Type().OBJECT);
+            return supertypes.stream().anyMatch(supertype -> {
+                CtType<?> declaration = supertype.getDeclaration();
+                if (declaration != null) {
+                    return declaration.getAllMethods().stream()
+                            .filter(m -> (m.getDeclaringType().getAnnotation(Staged.class) != null)
+                                    == staged)
+                            .anyMatch(m -> MethodNode.overrides(method, m));
+                }
+                // out of the source classpath, resolved via reflection
+                return !staged && supertype.getAllExecutables().stream()
+                        .anyMatch(e -> e.getSimpleName().equals(method.getSimpleName()) &&
+                                e.getParameters().size() == method.getParameters().size());
+            });
+        });
+    }
+
+    private void reach(DependencyNode node) {
+        if (node != null && reachable.add(node))
+            toVisit.add(node);
+    }
+
+    private void reachReferenced(CtReference ref) {
+        if (ref instanceof CtFieldReference) {
+            reach(memberToNode.get(((CtFieldReference<?>) ref).getDeclaration()));
+        } else if (ref instanceof CtExecutableReference) {
+            CtExecutableReference<?> executable = (CtExecutableReference<?>) ref;
+            CtExecutable<?> declaration = executable.getDeclaringType() != null ?
+                    executable.getDeclaration() : null;
+            DependencyNode node = memberToNode.get(declaration);
+            if (node != null) {
+                reach(node);
+                return;
+            }
+            if (declaration instanceof CtMethod) {
+                cxt.allCompilationNodes().forEach(compilationNode ->
+                        reach(compilationNode.interfaceMethodToNode.get(declaration)));
+            }
+            // calls of abstract methods, implemented in other staged classes
+            if (declaration == null || declaration.getBody() == null) {
+                nodesByMethodName.getOrDefault(executable.getSimpleName(), emptyList()).stream()
+                        .filter(n -> members(n).stream().anyMatch(m -> m instanceof CtMethod &&
+                                ((CtMethod<?>) m).getSimpleName()
+                                        .equals(executable.getSimpleName()) &&
+                                ((CtMethod<?>) m).getParameters().size() ==
+                                        executable.getParameters().size()))
+                        .forEach(this::reach);
+            }
+        }
+    }
+
+    private void remove(DependencyNode node, CtTypeMember member) {
+        CtType<?> declaringType = member.getDeclaringType();
+        if (member instanceof CtField) {
+            declaringType.removeField((CtField<?>) member);
+            return;
+        }
+        CtMethod<?> method = (CtMethod<?>) member;
+        if (!overridesSupertypeMethod(node.declaringType, method, true)) {
+            declaringType.removeMethod(method);
+        } else if (method.getBody() != null) {
+            throwingBody(method);
+        }
+    }
+
+    private static <T> void throwingBody(CtMethod<T> method) {
+        Factory f = method.getFactory();
+        CtBlock<T> body = f.Core().createBlock();
+        body.addStatement(f.Code().createCodeSnippetStatement(
+                "throw new java.lang.UnsupportedOperationException()"));
+        method.setBody(body);
+    }
+}
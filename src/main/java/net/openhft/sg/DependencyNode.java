@@ -45,6 +45,7 @@ public abstract class DependencyNode {
     protected final CtClass<?> declaringType;
     
     private boolean declaredAndPrepared = false;
+    private boolean flatCloseCascade = false;
 
     public DependencyNode(CompilationContext cxt, String name, CtClass<?> declaringType) {
         this.cxt = cxt;
@@ -67,6 +68,14 @@ public abstract class DependencyNode {
         return unmodifiableCollection(dependantsVia);
     }
 
+    /**
+     * Removes the given node, which is eliminated from the compiled context, from dependants
+     * of this node, so that it is not closed in the close cascade.
+     */
+    void removeDependant(DependencyNode dependant) {
+        dependantsVia.remove(dependant);
+    }
+
     /**
      * Directly or indirectly
      */
@@ -91,6 +100,23 @@ public abstract class DependencyNode {
     protected abstract void doDeclareAndPrepareAllMethods();
 
     public abstract Optional<CtMethod<Void>> getCloseMethod();
+
+    /**
+     * Method which closes only this node's own state, without closing dependants,
+     * if the node has some state.
+     */
+    public Optional<CtMethod<Void>> getCloseWithoutDependantsMethod() {
+        return empty();
+    }
+
+    /**
+     * Make the generated closeDependants() method close all transitive dependants directly,
+     * each exactly once, rather than calling direct dependants' close methods, which close
+     * their own dependants, and so on.
+     */
+    void flattenCloseCascade() {
+        flatCloseCascade = true;
+    }
     
     public abstract <E extends CtElement> List<E> filterBlocksForBuildingDeps(Filter<E> filter);
     
@@ -118,8 +144,17 @@ public abstract class DependencyNode {
         closeDependantsMethod = createSimpleMethod(f().Type().VOID_PRIMITIVE,
                 "close" + name + "Dependants");
         cxt.bindCloseDependants(closeDependantsMethod, this);
-        for (DependencyNode dependant : topologicallySortedDependants()) {
-            Optional<CtMethod<Void>> dependantCloseMethod = dependant.getCloseMethod();
+        List<DependencyNode> dependantsToClose;
+        if (flatCloseCascade) {
+            dependantsToClose = topologicallySortedTransitiveDependants();
+            // close dependants of dependants first
+            reverse(dependantsToClose);
+        } else {
+            dependantsToClose = topologicallySortedDependants();
+        }
+        for (DependencyNode dependant : dependantsToClose) {
+            Optional<CtMethod<Void>> dependantCloseMethod = flatCloseCascade ?
+                    dependant.getCloseWithoutDependantsMethod() : dependant.getCloseMethod();
             if (dependantCloseMethod.isPresent()) {
                 net.openhft.sg.CompilationNode dependantNode = cxt.getCompilationNode(dependant.declaringType);
                 net.openhft.sg.CompilationNode thisNode = cxt.getCompilationNode(declaringType);
@@ -140,6 +175,14 @@ public abstract class DependencyNode {
         return new ArrayList<>(sorted);
     }
     
+    private List<DependencyNode> topologicallySortedTransitiveDependants() {
+        Set<DependencyNode> visited = new HashSet<>();
+        Deque<DependencyNode> sorted = new ArrayDeque<>();
+        visit(visited, sorted);
+        sorted.remove(this);
+        return new ArrayList<>(sorted);
+    }
+    
     void visit(Set<DependencyNode> visited, Deque<DependencyNode> sorted) {
         if (visited.contains(this))
             return;
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg;
+
+import spoon.reflect.code.CtExpression;
+import spoon.reflect.code.CtInvocation;
+import spoon.reflect.code.CtVariableAccess;
+import spoon.reflect.declaration.*;
+import spoon.reflect.reference.CtExecutableReference;
+import spoon.reflect.reference.CtTypeReference;
+
+import java.util.*;
+
+import static java.util.stream.Collectors.toList;
+import static spoon.reflect.declaration.ModifierKind.*;
+
+/**
+ * Makes the output independent from class hierarchy analysis of the JIT: merged classes are
+ * made final; methods, which don't implement methods of external (not merged) types, are made
+ * private, if they are package-private and called only from the same class, or final
+ * otherwise; invocations of interface methods on merged class targets refer the merged class.
+ */
+final class Devirtualization {
+
+    private final CtClass<?> topClass;
+    private final List<CtClass<?>> mergedClasses;
+
+    Devirtualization(CtClass<?> topClass, CompilationContext cxt) {
+        this.topClass = topClass;
+        // merged classes of flattened nodes are removed
+        mergedClasses = cxt.allCompilationNodes().map(CompilationNode::getMergedClass)
+                .filter(this::inTopClass)
+                .collect(toList());
+    }
+
+    private boolean inTopClass(CtType<?> type) {
+        while (type != topClass) {
+            CtType<?> outer = type.getDeclaringType();
+            CtType<?> nested = type;
+            if (outer == null || outer.getNestedTypes().stream().noneMatch(t -> t == nested))
+                return false;
+            type = outer;
+        }
+        return true;
+    }
+
+    void devirtualize() {
+        Map<CtMethod<?>, Set<CtClass<?>>> callingClasses = new IdentityHashMap<>();
+        topClass.getElements((CtExecutableReference<?> ref) -> {
+            CtExecutable<?> declaration = ref.getDeclaringType() != null ?
+                    ref.getDeclaration() : null;
+            if (declaration instanceof CtMethod) {
+                callingClasses.computeIfAbsent((CtMethod<?>) declaration, m -> new HashSet<>())
+                        .add(ref.getParent(CtClass.class));
+            }
+            return false;
+        });
+        for (CtClass<?> mergedClass : mergedClasses) {
+            mergedClass.addModifier(FINAL);
+            for (CtMethod<?> method : mergedClass.getMethods()) {
+                if (method.hasModifier(STATIC) || method.hasModifier(ABSTRACT) ||
+                        method.hasModifier(PRIVATE) || implementsExternal(mergedClass, method)) {
+                    continue;
+                }
+                Set<CtClass<?>> callers = callingClasses.getOrDefault(method, Collections.emptySet());
+                if (!method.hasModifier(PUBLIC) && !method.hasModifier(PROTECTED) &&
+                        callers.stream().allMatch(c -> c == mergedClass)) {
+                    method.setVisibility(PRIVATE);
+                } else {
+                    method.addModifier(FINAL);
+                }
+            }
+        }
+        directInterfaceCalls();
+    }
+
+    /**
+     * Methods implementing methods of external interfaces, superclasses or {@link Object} keep
+     * their modifiers, because final modifier of the class is enough.
+     */
+    static boolean implementsExternal(CtClass<?> mergedClass, CtMethod<?> method) {
+        List<CtTypeReference<?>> supertypes = new ArrayList<>(mergedClass.getSuperInterfaces());
+        if (mergedClass.getSuperclass() != null)
+            supertypes.add(mergedClass.getSuperclass());
+        supertypes.add(mergedClass.getFactory().Type().OBJECT);
+        return supertypes.stream().anyMatch(supertype -> {
+            CtType<?> declaration = supertype.getDeclaration();
+            if (declaration != null) {
+                return declaration.getAllMethods().stream()
+                        .anyMatch(m -> MethodNode.overrides(method, m));
+            }
+            // out of the source classpath, resolved via reflection
+            return supertype.getAllExecutables().stream()
+                    .anyMatch(e -> e.getSimpleName().equals(method.getSimpleName()) &&
+                            e.getParameters().size() == method.getParameters().size());
+        });
+    }
+
+    private void directInterfaceCalls() {
+        List<CtInvocation<?>> interfaceCalls = topClass.getElements((CtInvocation<?> inv) -> {
+            CtTypeReference<?> declaringType = inv.getExecutable().getDeclaringType();
+            return declaringType != null && declaringType.isInterface() &&
+                    mergedClassType(inv.getTarget()) != null;
+        });
+        for (CtInvocation<?> call : interfaceCalls) {
+            call.getExecutable().setDeclaringType(mergedClassType(call.getTarget()));
+        }
+    }
+
+    /**
+     * Accesses, replaced @StageRef fields, might keep the interface type of the field, while
+     * the type of the accessed field is already updated to the merged class.
+     */
+    private CtTypeReference<?> mergedClassType(CtExpression<?> target) {
+        if (target == null)
+            return null;
+        CtTypeReference<?> targetType = target.getType();
+        if (target instanceof CtVariableAccess) {
+            CtVariable<?> variable = ((CtVariableAccess<?>) target).getVariable().getDeclaration();
+            if (variable != null)
+                targetType = variable.getType();
+        }
+        if (targetType == null)
+            return null;
+        CtType<?> type = targetType.getDeclaration();
+        return mergedClasses.stream().anyMatch(c -> c == type) ? targetType : null;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg;
+
+import spoon.reflect.code.*;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.declaration.CtParameter;
+import spoon.reflect.declaration.ModifierKind;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtParameterReference;
+import spoon.reflect.reference.CtTypeReference;
+
+import java.util.*;
+
+import static java.util.stream.Collectors.toList;
+import static spoon.reflect.code.BinaryOperatorKind.AND;
+
+/**
+ * Generates a fast path version of each public method of the root compilation node, which
+ * accesses stages. The fast version is a copy of the method with all guarded stage accesses
+ * replaced with raw field reads and stage method calls. The original method, before the guarded
+ * code, checks that all stages accessed in it are init with a single combined condition, and
+ * delegates to the fast version, if so.
+ *
+ * <p>Methods which might close stages (e. g. call init or close methods of stages, or pass the
+ * context outside) are not versioned, because the combined check is only valid at the beginning
+ * of such methods.
+ */
+final class EntryMethodVersioning {
+
+    private final CompilationContext cxt;
+    private final CompilationNode root;
+    private final GuardElimination guards;
+    private final StageProfile profile;
+
+    EntryMethodVersioning(CompilationContext cxt, CompilationNode root, StageProfile profile) {
+        this.cxt = cxt;
+        this.root = root;
+        this.guards = new GuardElimination(cxt);
+        this.profile = profile;
+    }
+
+    void versionEntryMethods() {
+        List<MethodNode> entryNodes = cxt.allNodes()
+                .filter(node -> node instanceof MethodNode)
+                .map(node -> (MethodNode) node)
+                .filter(node -> cxt.getCompilationNode(node.declaringType) == root)
+                // methods overridden in the staged extension chain are merged later
+                .filter(node -> node.getMethods().size() == 1)
+                .collect(toList());
+        for (MethodNode node : entryNodes) {
+            CtMethod<?> method = node.getMethods().get(0);
+            if (method.hasModifier(ModifierKind.PUBLIC) && method.getBody() != null &&
+                    !guards.mayCloseStages(method.getBody())) {
+                versionEntryMethod(node, method);
+            }
+        }
+    }
+
+    private <T> void versionEntryMethod(MethodNode node, CtMethod<T> method) {
+        CtClass<?> declaringClass = (CtClass<?>) method.getDeclaringType();
+        String fastPathName = method.getSimpleName() + "FastPath";
+        if (!declaringClass.getMethodsByName(fastPathName).isEmpty())
+            return;
+        Factory f = method.getFactory();
+        CtMethod<T> fastPath = f.Core().clone(method);
+        fastPath.setSimpleName(fastPathName);
+        fastPath.setAnnotations(new ArrayList<>());
+        fastPath.setVisibility(ModifierKind.PRIVATE);
+        Set<StageModel> requiredStages = new LinkedHashSet<>();
+        for (CtInvocation<?> guard : guards.guards(fastPath.getBody())) {
+            if (GuardElimination.deferred(guard, fastPath.getBody()) ||
+                    !accessesThisContext(guard.getTarget())) {
+                continue;
+            }
+            requiredStages.add(guards.guardedStage(guard));
+            guards.rewriteToRaw(guard);
+        }
+        if (requiredStages.isEmpty() ||
+                (profile != null && requiredStages.stream().anyMatch(profile::mostlyInitByGuards)))
+            return;
+        declaringClass.addMethod(fastPath);
+        cxt.bindFastPath(fastPath, node);
+
+        CtInvocation<T> fastPathCall = f.Code().createInvocation(
+                f.Code().createThisAccess(declaringClass.getReference()),
+                fastPath.getReference(),
+                method.getParameters().stream().map(EntryMethodVersioning::read)
+                        .collect(toList()));
+        CtIf ifReady = f.Core().createIf();
+        ifReady.setCondition(combinedReadyCheck(f, requiredStages));
+        CtReturn<T> ret = f.Core().createReturn();
+        if (method.getType().equals(f.Type().VOID_PRIMITIVE)) {
+            CtBlock<?> thenBlock = f.Core().createBlock();
+            thenBlock.addStatement(fastPathCall);
+            thenBlock.addStatement(ret);
+            ifReady.setThenStatement(thenBlock);
+        } else {
+            ret.setReturnedExpression(fastPathCall);
+            ifReady.setThenStatement(ret);
+        }
+        method.getBody().insertBegin(ifReady);
+    }
+
+    private static boolean accessesThisContext(CtExpression<?> target) {
+        while (target instanceof CtFieldAccess)
+            target = ((CtFieldAccess<?>) target).getTarget();
+        return target == null || target instanceof CtThisAccess;
+    }
+
+    /**
+     * Init checks of stages of the root node, which states are packed into bits, are merged
+     * into a single mask test per bit word.
+     */
+    private CtExpression<Boolean> combinedReadyCheck(Factory f, Set<StageModel> stages) {
+        List<CtExpression<Boolean>> checks = new ArrayList<>();
+        Map<String, Long> wordMasks = new LinkedHashMap<>();
+        for (StageModel stage : stages) {
+            if (stage.initStatePacked() && !stage.refreshesLazily() &&
+                    cxt.getCompilationNode(stage.declaringType) == root) {
+                wordMasks.merge(stage.initBitsWord(), 1L << (stage.initBitIndex() & 63),
+                        (m1, m2) -> m1 | m2);
+            } else {
+                checks.add(stage.createReadyCheck(root));
+            }
+        }
+        wordMasks.forEach((word, mask) -> {
+            String hexMask = "0x" + Long.toHexString(mask) + "L";
+            checks.add(0, f.Code().createCodeSnippetExpression(
+                    "((" + word + " & " + hexMask + ") == " + hexMask + ")"));
+        });
+        CtExpression<Boolean> combined = checks.get(0);
+        for (int i = 1; i < checks.size(); i++) {
+            combined = f.Code().createBinaryOperator(combined, checks.get(i), AND);
+        }
+        return combined;
+    }
+
+    private static <T> CtExpression<?> read(CtParameter<T> parameter) {
+        CtVariableRead<T> read = parameter.getFactory().Core().createVariableRead();
+        CtParameterReference<T> parameterReference = parameter.getReference();
+        read.setVariable(parameterReference);
+        CtTypeReference<T> type = parameter.getType();
+        read.setType(type);
+        return read;
+    }
+}
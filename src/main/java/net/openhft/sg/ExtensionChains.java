@@ -24,6 +24,7 @@ import spoon.reflect.reference.CtActualTypeContainer;
 import spoon.reflect.reference.CtParameterReference;
 import spoon.reflect.reference.CtTypeParameterReference;
 import spoon.reflect.reference.CtTypeReference;
+import spoon.reflect.reference.CtVariableReference;
 import spoon.reflect.visitor.CtScanner;
 import spoon.reflect.visitor.Filter;
 
@@ -81,52 +82,69 @@ public final class ExtensionChains {
                 int instantiatedParamIndex = typeArgs.indexOf(ta);
                 CtTypeReference<?> instantiatedTypeParam =
                         toMerge.getFormalTypeParameters().get(instantiatedParamIndex);
-                
-                toMerge.accept(new CtScanner() {
+                replaceTypeParam(toMerge, instantiatedTypeParam.getSimpleName(), ta, ta);
+            });
+    }
 
-                    @Override
-                    public void scan(CtElement element) {
-                        if (element instanceof CtActualTypeContainer) {
-                            CtActualTypeContainer ref = (CtActualTypeContainer) element;
-                            ArrayList<CtTypeReference<?>> typeArgs =
-                                    new ArrayList<>(ref.getActualTypeArguments());
-                            replaceInList(element.getFactory(), typeArgs);
-                            ref.setActualTypeArguments(typeArgs);
-                        }
-                        if (element instanceof CtTypeParameterReference) {
-                            CtTypeParameterReference ref = (CtTypeParameterReference) element;
-                            ArrayList<CtTypeReference<?>> bounds = new ArrayList<>(ref.getBounds());
-                            replaceInList(element.getFactory(), bounds);
-                            ref.setBounds(bounds);
-                        }
-                        if (element instanceof CtTypedElement) {
-                            CtTypedElement typed = (CtTypedElement) element;
-                            CtTypeReference type = typed.getType();
-                            if (type != null && instantiatedTypeParam.getSimpleName().equals(
-                                    type.getSimpleName())) {
-                                typed.setType(element.getFactory().Core().clone(ta));
-                            }
-                        }
-                        if (element instanceof CtExpression) {
-                            ArrayList<CtTypeReference<?>> typeCasts =
-                                    new ArrayList<>(((CtExpression) element).getTypeCasts());
-                            replaceInList(element.getFactory(), typeCasts);
-                            ((CtExpression) element).setTypeCasts(typeCasts);
-                        }
-                        super.scan(element);
+    /**
+     * Replaces usages of the type parameter with the given name within the element: types of
+     * typed elements and casts with {@code type}, type arguments and bounds with
+     * {@code typeArg}. They are different, when the type parameter is replaced with a primitive
+     * type, which couldn't be a type argument.
+     */
+    static void replaceTypeParam(CtElement scope, String typeParamName,
+                                 CtTypeReference<?> type, CtTypeReference<?> typeArg) {
+        scope.accept(new CtScanner() {
+
+            @Override
+            public void scan(CtElement element) {
+                if (element instanceof CtActualTypeContainer) {
+                    CtActualTypeContainer ref = (CtActualTypeContainer) element;
+                    ArrayList<CtTypeReference<?>> typeArgs =
+                            new ArrayList<>(ref.getActualTypeArguments());
+                    replaceInList(element.getFactory(), typeArgs, typeArg);
+                    ref.setActualTypeArguments(typeArgs);
+                }
+                if (element instanceof CtTypeParameterReference) {
+                    CtTypeParameterReference ref = (CtTypeParameterReference) element;
+                    ArrayList<CtTypeReference<?>> bounds = new ArrayList<>(ref.getBounds());
+                    replaceInList(element.getFactory(), bounds, typeArg);
+                    ref.setBounds(bounds);
+                }
+                if (element instanceof CtTypedElement) {
+                    CtTypedElement typed = (CtTypedElement) element;
+                    CtTypeReference elementType = typed.getType();
+                    if (elementType != null &&
+                            typeParamName.equals(elementType.getSimpleName())) {
+                        typed.setType(element.getFactory().Core().clone(type));
                     }
+                }
+                if (element instanceof CtVariableReference) {
+                    CtVariableReference ref = (CtVariableReference) element;
+                    CtTypeReference refType = ref.getType();
+                    if (refType != null && typeParamName.equals(refType.getSimpleName()))
+                        ref.setType(element.getFactory().Core().clone(type));
+                }
+                if (element instanceof CtExpression) {
+                    ArrayList<CtTypeReference<?>> typeCasts =
+                            new ArrayList<>(((CtExpression) element).getTypeCasts());
+                    replaceInList(element.getFactory(), typeCasts, type);
+                    ((CtExpression) element).setTypeCasts(typeCasts);
+                }
+                super.scan(element);
+            }
 
-                    private void replaceInList(Factory f, List<CtTypeReference<?>> types) {
-                        for (int i = 0; i < types.size(); i++) {
-                            CtTypeReference<?> arg = types.get(i);
-                            if (instantiatedTypeParam.getSimpleName().equals(arg.getSimpleName())) {
-                                types.set(i, f.Core().clone(ta));
-                            }
-                        }
+            private void replaceInList(Factory f, List<CtTypeReference<?>> types,
+                                       CtTypeReference<?> replacement) {
+                for (int i = 0; i < types.size(); i++) {
+                    CtTypeReference<?> arg = types.get(i);
+                    if (typeParamName.equals(arg.getSimpleName())) {
+                        types.set(i, f.Core().clone(replacement));
                     }
+                }
+            }
 
-                });
-            });
+        });
     }
 
     private static <T> void processConstructor(CtConstructor<T> c, CtClass<T> toMerge) {
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg;
+
+import spoon.reflect.code.*;
+import spoon.reflect.declaration.*;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtTypeReference;
+
+import java.util.*;
+
+import static java.util.stream.Collectors.toList;
+import static net.openhft.sg.StageGraphCompilationException.sgce;
+import static net.openhft.sg.StringUtils.lowercase;
+
+/**
+ * Removes stages and methods of disabled {@link Feature}s from staged classes, before the stage
+ * graph is built. If a stage field is annotated, all fields of the stage, its init, close and
+ * stage init check methods and stage methods are removed. Methods which implement methods of
+ * interfaces or superclasses are not removed, but their bodies just return the default value.
+ *
+ * <p>Calls of removed methods, which are statements, are removed, arguments of removed calls
+ * are not evaluated. If a kept method uses the result of a removed method, or reads or writes
+ * a field of a removed stage, {@link StageGraphCompilationException} is thrown, because
+ * silently replacing the value with a default would change the logic of the kept method.
+ */
+final class FeaturePruning {
+
+    private final List<CtClass<?>> classes;
+    private final Set<String> disabledFeatures;
+    private final Set<CtField<?>> removedFields =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<CtMethod<?>> removedMethods =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+
+    FeaturePruning(CompilationContext cxt, Set<String> disabledFeatures) {
+        classes = cxt.allClasses().flatMap(c -> Compiler.stagedClassExtensionChain(c).stream())
+                .distinct()
+                .collect(toList());
+        this.disabledFeatures = disabledFeatures;
+    }
+
+    void prune() {
+        Set<String> disabledStages = new HashSet<>();
+        for (CtClass<?> c : classes) {
+            c.getFields().stream().filter(this::disabled)
+                    .forEach(field -> disabledStages.add(StageModel.stageName(field)));
+            c.getMethods().stream().filter(this::disabled).forEach(removedMethods::add);
+        }
+        for (CtClass<?> c : classes) {
+            c.getFields().stream()
+                    .filter(field -> disabledStages.contains(StageModel.stageName(field)))
+                    .forEach(removedFields::add);
+            c.getMethods().stream()
+                    .filter(method -> disabledStages.stream().anyMatch(stage ->
+                            stageMethod(method, stage)))
+                    .forEach(removedMethods::add);
+        }
+        if (removedFields.isEmpty() && removedMethods.isEmpty())
+            return;
+        for (CtClass<?> c : classes) {
+            c.getElements((CtInvocation<?> invocation) -> removedMethods.contains(
+                    declaration(invocation)) && !inRemovedMethod(invocation))
+                    .forEach(this::removeInvocation);
+            c.getElements((CtFieldAccess<?> access) ->
+                    removedFields.contains(access.getVariable().getDeclaration()) &&
+                            !inRemovedMethod(access))
+                    .forEach(access -> {
+                        throw sgce(usage(access) + " accesses field " +
+                                access.getVariable().getSimpleName() + " of a disabled feature");
+                    });
+        }
+        for (CtClass<?> c : classes) {
+            new ArrayList<>(c.getFields()).stream().filter(removedFields::contains)
+                    .forEach(c::removeField);
+            for (CtMethod<?> method : new ArrayList<>(c.getMethods())) {
+                if (!removedMethods.contains(method))
+                    continue;
+                if (Devirtualization.implementsExternal(c, method)) {
+                    stubBody(method);
+                } else {
+                    c.removeMethod(method);
+                }
+            }
+        }
+    }
+
+    private boolean disabled(CtElement member) {
+        Feature feature = member.getAnnotation(Feature.class);
+        return feature != null && disabledFeatures.contains(feature.value());
+    }
+
+    private static boolean stageMethod(CtMethod<?> method, String stage) {
+        String name = method.getSimpleName();
+        if (name.equals("init" + stage) || name.startsWith("init" + stage + "_") ||
+                name.equals("close" + stage) || name.equals(lowercase(stage) + "Init")) {
+            return true;
+        }
+        return method.getAnnotation(Stage.class) != null &&
+                StageModel.getStageName(method).equals(stage);
+    }
+
+    private static CtExecutable<?> declaration(CtInvocation<?> invocation) {
+        // the case when the declaring type is out of classpath
+        if (invocation.getExecutable().getDeclaringType() == null)
+            return null;
+        return invocation.getExecutable().getDeclaration();
+    }
+
+    private boolean inRemovedMethod(CtElement e) {
+        CtMethod<?> method = e.getParent(CtMethod.class);
+        return method != null && removedMethods.contains(method);
+    }
+
+    private void removeInvocation(CtInvocation<?> invocation) {
+        if (invocation.getParent() instanceof CtBlock) {
+            ((CtBlock<?>) invocation.getParent()).removeStatement(invocation);
+        } else if (invocation.getParent() instanceof CtStatement &&
+                !(invocation.getParent() instanceof CtExpression) &&
+                (invocation.getType() == null || invocation.getType().equals(
+                        invocation.getFactory().Type().VOID_PRIMITIVE))) {
+            // a statement in a branch of if, or a loop body
+            invocation.replace(invocation.getFactory().Core().createBlock());
+        } else {
+            throw sgce(usage(invocation) + " uses the result of " +
+                    invocation.getExecutable().getSimpleName() + "() of a disabled feature");
+        }
+    }
+
+    private static String usage(CtElement e) {
+        CtExecutable<?> executable = e.getParent(CtExecutable.class);
+        CtType<?> type = e.getParent(CtType.class);
+        return type.getSimpleName() + "." +
+                (executable != null ? executable.getSimpleName() + "()" : "<init>");
+    }
+
+    private static <T> void stubBody(CtMethod<T> method) {
+        Factory f = method.getFactory();
+        CtBlock<T> body = f.Core().createBlock();
+        if (!method.getType().equals(f.Type().VOID_PRIMITIVE)) {
+            body.addStatement(f.Code().createCodeSnippetStatement(
+                    "return " + defaultValueCode(method.getType())));
+        }
+        method.setBody(body);
+    }
+
+    private static String defaultValueCode(CtTypeReference<?> type) {
+        switch (type.getQualifiedName()) {
+            case "boolean": return "false";
+            case "long": return "0L";
+            case "float": return "0.0F";
+            case "double": return "0.0";
+            case "char": return "'\\u0000'";
+            case "byte": return "((byte) 0)";
+            case "short": return "((short) 0)";
+            case "int": return "0";
+            default: return "null";
+        }
+    }
+}
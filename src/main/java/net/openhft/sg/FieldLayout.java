@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg;
+
+import spoon.reflect.code.CtFieldAccess;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtField;
+import spoon.reflect.declaration.ModifierKind;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtTypeReference;
+
+import java.util.*;
+
+import static java.util.Comparator.comparing;
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Orders fields of merged classes so that the fields of stages which are used together are
+ * adjacent in memory. HotSpot lays out instance fields grouped by size (longs and doubles, ints
+ * and floats, shorts and chars, bytes and booleans, then references), keeping the declaration
+ * order within each group, so stage fields are declared in the same order, before all other
+ * members. Within each group, fields of stages reached from the most entry methods go first,
+ * and fields of stages reached from exactly the same set of entry methods are contiguous.
+ *
+ * <p>Optional padding adds long fields before and after the long fields group. It isolates the
+ * head of the object, and the long fields group from the rest of the fields, from false sharing,
+ * but not the tail of the object, because the JVM lays out references last anyway.
+ *
+ * <p>With a {@link StageProfile}, fields of hotter stages go first within each size group,
+ * regardless of entry methods.
+ *
+ * <p>Offsets in the report assume compressed oops and 12-byte object headers, and don't count
+ * fields of non-staged superclasses.
+ */
+final class FieldLayout {
+
+    static final int CACHE_LINE_SIZE = 64;
+    private static final int HEADER_SIZE = 12;
+    private static final int PADDING_LONGS = CACHE_LINE_SIZE / 8;
+
+    private final CompilationContext cxt;
+    private final Map<StageModel, Set<MethodNode>> entriesByStage = new HashMap<>();
+    private final List<String> report = new ArrayList<>();
+    private final StageProfile profile;
+
+    FieldLayout(CompilationContext cxt, CompilationNode root, StageProfile profile) {
+        this.cxt = cxt;
+        this.profile = profile;
+        cxt.allNodes()
+                .filter(node -> node instanceof MethodNode)
+                .map(node -> (MethodNode) node)
+                .filter(node -> cxt.getCompilationNode(node.declaringType) == root &&
+                        node.getMethods().stream()
+                                .anyMatch(m -> m.hasModifier(ModifierKind.PUBLIC)))
+                .forEach(entry -> reachedStages(entry).forEach(stage ->
+                        entriesByStage.computeIfAbsent(stage, s -> new HashSet<>()).add(entry)));
+    }
+
+    private static Set<StageModel> reachedStages(DependencyNode entry) {
+        Set<StageModel> stages = new HashSet<>();
+        Set<DependencyNode> visited = new HashSet<>();
+        Deque<DependencyNode> toVisit = new ArrayDeque<>();
+        toVisit.add(entry);
+        DependencyNode node;
+        while ((node = toVisit.poll()) != null) {
+            if (!visited.add(node))
+                continue;
+            if (node instanceof StageModel)
+                stages.add((StageModel) node);
+            toVisit.addAll(node.getDependencies());
+        }
+        return stages;
+    }
+
+    /**
+     * Should be called after members are sorted, i. e. {@link CompilationContext#getOrder}
+     * is known for all stages.
+     */
+    void layOut(CtClass<?> mergedClass, boolean pad) {
+        List<CtField<?>> stageFields = mergedClass.getFields().stream()
+                .filter(f -> !f.hasModifier(ModifierKind.STATIC) && cxt.getStageModel(f) != null)
+                // declaring fields with initializers, reading other fields, before those
+                // fields might be an illegal forward reference
+                .filter(f -> f.getDefaultExpression() == null || f.getDefaultExpression()
+                        .getElements((CtFieldAccess<?> access) -> true).isEmpty())
+                .collect(toList());
+        if (stageFields.isEmpty())
+            return;
+        Map<Set<MethodNode>, Integer> groupOrder = new HashMap<>();
+        stageFields.stream()
+                .map(f -> entries(cxt.getStageModel(f)))
+                .sorted(comparing((Set<MethodNode> entries) -> -entries.size()))
+                .forEach(entries -> groupOrder.putIfAbsent(entries, groupOrder.size()));
+        stageFields.sort(comparing((CtField<?> f) -> kind(f.getType()))
+                .thenComparing(f -> profile != null ?
+                        -profile.hotness(cxt.getStageModel(f)) : 0L)
+                .thenComparing(f -> groupOrder.get(entries(cxt.getStageModel(f))))
+                .thenComparing(f -> cxt.getOrder(f)));
+
+        List<CtField<?>> declarationOrder = new ArrayList<>(stageFields);
+        if (pad) {
+            int longs = (int) stageFields.stream().filter(f -> kind(f.getType()) == 0).count();
+            declarationOrder.addAll(0, padding(mergedClass, "head"));
+            declarationOrder.addAll(PADDING_LONGS + longs, padding(mergedClass, "tail"));
+        }
+        for (int i = 0; i < declarationOrder.size(); i++) {
+            CtField<?> field = declarationOrder.get(i);
+            // before all generated and sorted members, which orders are non-negative
+            field.setPosition(new LinedSourcePosition(field.getPosition(),
+                    i - declarationOrder.size()));
+        }
+        reportCacheLines(mergedClass, declarationOrder);
+    }
+
+    private Set<MethodNode> entries(StageModel stage) {
+        return entriesByStage.getOrDefault(stage, Collections.emptySet());
+    }
+
+    private static List<CtField<?>> padding(CtClass<?> mergedClass, String place) {
+        Factory f = mergedClass.getFactory();
+        List<CtField<?>> padding = new ArrayList<>();
+        for (int i = 0; i < PADDING_LONGS; i++) {
+            padding.add(f.Field().create(mergedClass, EnumSet.noneOf(ModifierKind.class),
+                    f.Type().LONG_PRIMITIVE, place + "Padding" + i));
+        }
+        return padding;
+    }
+
+    /**
+     * Order of field groups in HotSpot's default field layout.
+     */
+    private static int kind(CtTypeReference<?> type) {
+        switch (size(type)) {
+            case 8: return 0;
+            case 2: return 2;
+            case 1: return 3;
+            default: return type.isPrimitive() ? 1 : 4;
+        }
+    }
+
+    private static int size(CtTypeReference<?> type) {
+        switch (type.getQualifiedName()) {
+            case "long": case "double": return 8;
+            case "short": case "char": return 2;
+            case "byte": case "boolean": return 1;
+            default: return 4; // int, float, compressed reference
+        }
+    }
+
+    private void reportCacheLines(CtClass<?> mergedClass, List<CtField<?>> fields) {
+        List<CtField<?>> layout = new ArrayList<>(fields);
+        mergedClass.getFields().stream()
+                .filter(f -> !f.hasModifier(ModifierKind.STATIC) && !fields.contains(f))
+                .forEach(layout::add);
+        layout.sort(comparing((CtField<?> f) -> kind(f.getType())));
+        // HotSpot fills the gap after the header with a 4-byte field, if there are long fields
+        if (!layout.isEmpty() && kind(layout.get(0).getType()) == 0) {
+            layout.stream().filter(f -> size(f.getType()) == 4).findFirst().ifPresent(f -> {
+                layout.remove(f);
+                layout.add(0, f);
+            });
+        }
+        Map<Integer, List<String>> hotFieldsByLine = new TreeMap<>();
+        int offset = HEADER_SIZE;
+        for (CtField<?> field : layout) {
+            int size = size(field.getType());
+            offset = (offset + size - 1) / size * size;
+            StageModel stage = cxt.getStageModel(field);
+            if (stage != null && !entries(stage).isEmpty()) {
+                hotFieldsByLine.computeIfAbsent(offset / CACHE_LINE_SIZE, l -> new ArrayList<>())
+                        .add(field.getSimpleName() + "@" + offset);
+            }
+            offset += size;
+        }
+        hotFieldsByLine.forEach((line, hotFields) -> report.add(mergedClass.getSimpleName() +
+                " cache line " + line + ": " + String.join(", ", hotFields)));
+    }
+
+    List<String> getReport() {
+        return report;
+    }
+}
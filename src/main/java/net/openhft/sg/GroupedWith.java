@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.sg;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Declares that the stage of the annotated field is grouped with the given stage of the same
+ * class: its guards are eliminated from stage methods of that stage, and it is closed together
+ * with that stage, even if other stages or methods depend on the annotated stage as well.
+ * Compilation fails, if the stage couldn't be grouped, e. g. with {@link
+ * Compiler#lazyInvalidation()}.
+ *
+ * @see Compiler#groupStages()
+ * @see StageGroups
+ */
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface GroupedWith {
+    String value();
+}
@@ -0,0 +1,403 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg;
+
+import it.unimi.dsi.fastutil.objects.Object2ObjectOpenCustomHashMap;
+import spoon.reflect.code.*;
+import spoon.reflect.declaration.*;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.visitor.filter.TypeFilter;
+import spoon.support.visitor.replace.ReplacementVisitor;
+
+import java.util.*;
+
+import static net.openhft.sg.CompilationContext.identityHashedEquivalence;
+import static spoon.reflect.code.BinaryOperatorKind.AND;
+import static spoon.reflect.code.BinaryOperatorKind.OR;
+
+/**
+ * Rewrites guarded stage field accesses and stage method calls, produced by {@link
+ * Compiler#guardFieldsAccess()} and {@link Compiler#guardStageMethodCalls()}, into raw field
+ * reads and raw method calls, when the same stage is already guarded earlier in a dominating
+ * statement, and nothing that might close stages is called in between.
+ *
+ * <p>The analysis is intra-method and conservative: facts (sets of stages proven init) flow
+ * forward through straight-line code, into if-branches and into loop bodies which don't call
+ * anything that might close stages, but never into lambdas, anonymous and local classes. Facts
+ * flow out of loops, which might close stages, only from their conditions, if the loops don't
+ * break. If a stage is first accessed in the body of a for or a while loop, which doesn't close
+ * stages, the first iteration is peeled, so that the stage is proven init in the rest of the
+ * loop.
+ */
+final class GuardElimination {
+
+    private final CompilationContext cxt;
+    private final Map<DependencyNode, Boolean> mayCloseStages =
+            new Object2ObjectOpenCustomHashMap<>(identityHashedEquivalence());
+
+    GuardElimination(CompilationContext cxt) {
+        this.cxt = cxt;
+    }
+
+    void eliminateRedundantGuards() {
+        cxt.allNodes().forEach(node -> {
+            List<CtMethod<?>> methods = node.filterBlocksForBuildingDeps((CtMethod<?> m) ->
+                    m.getParent() instanceof CtClass &&
+                            cxt.getNodeByAnyStagedClass((CtClass<?>) m.getParent()) != null);
+            methods.forEach(m -> {
+                if (m.getBody() != null)
+                    processBlock(m.getBody(), new HashSet<>());
+            });
+        });
+    }
+
+    private Set<StageModel> processBlock(CtBlock<?> block, Set<StageModel> provenInit) {
+        for (CtStatement statement : new ArrayList<>(block.getStatements())) {
+            provenInit = processStatement(statement, provenInit);
+        }
+        return provenInit;
+    }
+
+    private Set<StageModel> processStatement(CtStatement statement, Set<StageModel> provenInit) {
+        if (statement == null)
+            return provenInit;
+        if (statement instanceof CtBlock)
+            return processBlock((CtBlock<?>) statement, provenInit);
+        if (statement instanceof CtIf) {
+            CtIf ctIf = (CtIf) statement;
+            provenInit = processUnit(ctIf.getCondition(), provenInit);
+            Set<StageModel> thenProvenInit =
+                    processStatement(ctIf.getThenStatement(), new HashSet<>(provenInit));
+            Set<StageModel> elseProvenInit =
+                    processStatement(ctIf.getElseStatement(), new HashSet<>(provenInit));
+            thenProvenInit.retainAll(elseProvenInit);
+            return thenProvenInit;
+        }
+        if (statement instanceof CtLoop)
+            return processLoop((CtLoop) statement, provenInit);
+        if (statement instanceof CtTry || statement instanceof CtSwitch ||
+                statement instanceof CtSynchronized) {
+            if (mayCloseStages(statement))
+                return new HashSet<>();
+            // proven init stages are rewritten anywhere inside, but because parts of such
+            // statements are executed conditionally, they don't add facts
+            for (CtInvocation<?> guard : guards(statement)) {
+                if (provenInit.contains(guardedStage(guard)) && !deferred(guard, statement))
+                    rewriteToRaw(guard);
+            }
+            return provenInit;
+        }
+        return processUnit(statement, provenInit);
+    }
+
+    private Set<StageModel> processLoop(CtLoop loop, Set<StageModel> provenInit) {
+        boolean loopSafe = !mayCloseStages(loop);
+        // conservatively, any break or continue inside, even of a nested loop or a switch
+        boolean mayBreak = !loop.getElements(new TypeFilter<>(CtBreak.class)).isEmpty();
+        boolean mayContinue = !loop.getElements(new TypeFilter<>(CtContinue.class)).isEmpty();
+        if (loop instanceof CtDo) {
+            // the body is executed before the condition, and at least once, so the first
+            // access of a stage in the body makes it proven init on the next iterations
+            Set<StageModel> bodyProvenInit = processStatement(loop.getBody(), loopSafe ?
+                    new HashSet<>(provenInit) : new HashSet<>());
+            Set<StageModel> conditionProvenInit = processUnit(
+                    ((CtDo) loop).getLoopingExpression(), mayContinue ?
+                            new HashSet<>(loopSafe ? provenInit : Collections.emptySet()) :
+                            bodyProvenInit);
+            if (!mayBreak)
+                return conditionProvenInit;
+            return loopSafe ? provenInit : new HashSet<>();
+        }
+        if (loopSafe) {
+            CtStatement peeled = peelFirstIteration(loop, provenInit);
+            if (peeled != null)
+                return processStatement(peeled, provenInit);
+        }
+        CtExpression<?> condition = null;
+        if (loop instanceof CtFor) {
+            for (CtStatement forInit : ((CtFor) loop).getForInit()) {
+                provenInit = processUnit(forInit, provenInit);
+            }
+            condition = ((CtFor) loop).getExpression();
+        } else if (loop instanceof CtForEach) {
+            provenInit = processUnit(((CtForEach) loop).getExpression(), provenInit);
+        } else if (loop instanceof CtWhile) {
+            condition = ((CtWhile) loop).getLoopingExpression();
+        }
+        // if the loop might close some stages, facts which are true before the loop
+        // are not true on the next iterations
+        Set<StageModel> iterationProvenInit = loopSafe ? provenInit : new HashSet<>();
+        if (condition != null)
+            iterationProvenInit = processUnit(condition, iterationProvenInit);
+        Set<StageModel> bodyProvenInit =
+                processStatement(loop.getBody(), new HashSet<>(iterationProvenInit));
+        if (loop instanceof CtFor) {
+            // the update follows the body, or a continue, which might follow a close
+            Set<StageModel> updateProvenInit = mayContinue ?
+                    new HashSet<>(loopSafe ? iterationProvenInit : Collections.emptySet()) :
+                    bodyProvenInit;
+            for (CtStatement forUpdate : ((CtFor) loop).getForUpdate()) {
+                updateProvenInit = processUnit(forUpdate, updateProvenInit);
+            }
+        }
+        if (loopSafe)
+            return iterationProvenInit;
+        // the loop exits right after the condition is evaluated, unless it breaks, maybe after
+        // a close
+        return mayBreak || condition == null ? new HashSet<>() : iterationProvenInit;
+    }
+
+    /**
+     * Peels the first iteration of the loop, which doesn't close stages, if some stage is first
+     * accessed unconditionally in the body: {@code while (c) body} becomes {@code if (c) {body;
+     * while (c) body}}, so that the stage is proven init in the remaining loop. For loops are
+     * peeled in a block with the for init. Loops with labels, breaks, continues, or classes in
+     * the body are not peeled.
+     *
+     * @return the statement, which replaced the loop and contains it, or {@code null}, if the
+     * loop is not peeled
+     */
+    private CtStatement peelFirstIteration(CtLoop loop, Set<StageModel> provenInit) {
+        if (!(loop instanceof CtFor || loop instanceof CtWhile) || loop.getLabel() != null)
+            return null;
+        CtStatement body = loop.getBody();
+        if (body == null || !body.getElements(new TypeFilter<>(CtBreak.class)).isEmpty() ||
+                !body.getElements(new TypeFilter<>(CtContinue.class)).isEmpty() ||
+                !body.getElements(new TypeFilter<>(CtClass.class)).isEmpty() ||
+                !body.getElements(new TypeFilter<>(CtNewClass.class)).isEmpty()) {
+            return null;
+        }
+        List<CtStatement> statements = body instanceof CtBlock ?
+                ((CtBlock<?>) body).getStatements() : Collections.singletonList(body);
+        CtExpression<Boolean> condition = loop instanceof CtFor ?
+                ((CtFor) loop).getExpression() : ((CtWhile) loop).getLoopingExpression();
+        Set<StageModel> provenBeforeBody = new HashSet<>(provenInit);
+        if (loop instanceof CtFor)
+            ((CtFor) loop).getForInit().forEach(u -> provenBeforeBody.addAll(provenBy(u)));
+        if (condition != null)
+            provenBeforeBody.addAll(provenBy(condition));
+        boolean firstAccessedInBody = statements.stream()
+                .filter(st -> !(st instanceof CtBlock || st instanceof CtIf ||
+                        st instanceof CtLoop || st instanceof CtTry || st instanceof CtSwitch ||
+                        st instanceof CtSynchronized))
+                .flatMap(st -> provenBy(st).stream())
+                .anyMatch(stage -> !provenBeforeBody.contains(stage));
+        if (!firstAccessedInBody)
+            return null;
+
+        Factory f = loop.getFactory();
+        CtBlock<?> peeled = f.Core().createBlock();
+        peeled.addStatement(f.Core().clone(body));
+        if (loop instanceof CtFor) {
+            ((CtFor) loop).getForUpdate().forEach(update -> peeled.addStatement(
+                    f.Core().clone(update)));
+        }
+        CtStatement replacement;
+        if (condition != null) {
+            CtIf ctIf = f.Core().createIf();
+            ctIf.setCondition(f.Core().clone(condition));
+            ctIf.setThenStatement(peeled);
+            replacement = ctIf;
+        } else {
+            replacement = peeled;
+        }
+        if (loop instanceof CtFor && !((CtFor) loop).getForInit().isEmpty()) {
+            CtBlock<?> forInitScope = f.Core().createBlock();
+            new ArrayList<>(((CtFor) loop).getForInit()).forEach(forInit -> {
+                ((CtFor) loop).removeForInit(forInit);
+                forInitScope.addStatement(forInit);
+            });
+            forInitScope.addStatement(replacement);
+            replacement = forInitScope;
+        }
+        // CtStatement.replace() would splice the block with the for init into the enclosing
+        // block, while it should remain the scope of the variables declared in the for init
+        ReplacementVisitor.replace(loop, replacement);
+        peeled.addStatement(loop);
+        return replacement;
+    }
+
+    /**
+     * Stages, guarded unconditionally in the given expression or simple statement.
+     */
+    private Set<StageModel> provenBy(CtElement unit) {
+        Set<StageModel> stages = new HashSet<>();
+        for (CtInvocation<?> guard : guards(unit)) {
+            if (!deferred(guard, unit) && !conditional(guard, unit))
+                stages.add(guardedStage(guard));
+        }
+        return stages;
+    }
+
+    /**
+     * Processes an expression or a simple statement, which is considered atomic with regard to
+     * the order of evaluation.
+     */
+    private Set<StageModel> processUnit(CtElement unit, Set<StageModel> provenInit) {
+        if (unit == null)
+            return provenInit;
+        if (mayCloseStages(unit))
+            return new HashSet<>();
+        List<CtInvocation<?>> guards = guards(unit);
+        Set<StageModel> newProvenInit = new HashSet<>();
+        for (CtInvocation<?> guard : guards) {
+            if (deferred(guard, unit))
+                continue;
+            StageModel stage = guardedStage(guard);
+            if (provenInit.contains(stage)) {
+                rewriteToRaw(guard);
+            } else if (!conditional(guard, unit)) {
+                newProvenInit.add(stage);
+            }
+        }
+        provenInit.addAll(newProvenInit);
+        return provenInit;
+    }
+
+    List<CtInvocation<?>> guards(CtElement element) {
+        return element.getElements((CtInvocation<?> inv) -> guardedStage(inv) != null);
+    }
+
+    StageModel guardedStage(CtInvocation<?> invocation) {
+        CtMethod<?> method = method(invocation);
+        if (method == null)
+            return null;
+        StageModel stage = cxt.getStageModelByAccessMethod(method);
+        return stage != null ? stage : cxt.getStageModelByGuardedStageMethod(method);
+    }
+
+    private static CtMethod<?> method(CtAbstractInvocation<?> invocation) {
+        // the case when the declaring type is out of classpath
+        if (invocation.getExecutable().getDeclaringType() == null)
+            return null;
+        CtExecutable<?> declaration = invocation.getExecutable().getDeclaration();
+        return declaration instanceof CtMethod ? (CtMethod<?>) declaration : null;
+    }
+
+    /**
+     * Code in lambdas, anonymous and local classes could be executed at any point later.
+     */
+    static boolean deferred(CtElement element, CtElement unit) {
+        for (CtElement e = element; e != unit; e = e.getParent()) {
+            if (e instanceof CtLambda || e instanceof CtClass || e instanceof CtNewClass)
+                return true;
+        }
+        return false;
+    }
+
+    static boolean conditional(CtElement element, CtElement unit) {
+        for (CtElement child = element, e = element.getParent(); child != unit;
+             child = e, e = e.getParent()) {
+            if (e instanceof CtBinaryOperator) {
+                CtBinaryOperator<?> op = (CtBinaryOperator<?>) e;
+                if ((op.getKind() == AND || op.getKind() == OR) &&
+                        op.getRightHandOperand() == child) {
+                    return true;
+                }
+            }
+            if (e instanceof CtConditional && ((CtConditional<?>) e).getCondition() != child)
+                return true;
+        }
+        return false;
+    }
+
+    boolean mayCloseStages(CtElement element) {
+        return element.getElements((CtAbstractInvocation<?> inv) -> mayCloseStages(inv))
+                .stream().findAny().isPresent();
+    }
+
+    private boolean mayCloseStages(CtAbstractInvocation<?> invocation) {
+        if (invocation instanceof CtInvocation) {
+            CtMethod<?> method = method(invocation);
+            if (method != null) {
+                StageModel stage = guardedStage((CtInvocation<?>) invocation);
+                if (stage == null)
+                    stage = cxt.getStageModelByStageMethod(method);
+                if (stage != null)
+                    return mayCloseStages(stage);
+                if (cxt.getStageModelByStageInit(method) != null)
+                    return false;
+                if (cxt.getStageModelByInitStage(method) != null ||
+                        cxt.getStageModelByClose(method) != null) {
+                    return true;
+                }
+                MethodNode methodNode = cxt.getMethodNode(method);
+                if (methodNode != null)
+                    return mayCloseStages(methodNode);
+            }
+            if (referencesContext(((CtInvocation<?>) invocation).getTarget(), true))
+                return true;
+        }
+        // Methods out of the context (or abstract methods, implemented by some other context
+        // class) might call back into the context, if the context is passed to them.
+        return invocation.getArguments().stream().anyMatch(arg -> referencesContext(arg, false));
+    }
+
+    private boolean referencesContext(CtExpression<?> e, boolean target) {
+        if (e == null)
+            return target;
+        if (e instanceof CtThisAccess)
+            return true;
+        if (e instanceof CtFieldAccess) {
+            CtField<?> field = ((CtFieldAccess<?>) e).getVariable().getDeclaration();
+            if (field != null && field.getAnnotation(StageRef.class) != null)
+                return true;
+        }
+        if (e.getType() != null) {
+            CtType<?> type = e.getType().getDeclaration();
+            return type instanceof CtClass &&
+                    cxt.getNodeByAnyStagedClass((CtClass<?>) type) != null;
+        }
+        return false;
+    }
+
+    private boolean mayCloseStages(DependencyNode node) {
+        Boolean mayClose = mayCloseStages.get(node);
+        if (mayClose != null)
+            return mayClose;
+        // break recursion of stage methods calling each other, the result is determined
+        // by the other invocations
+        mayCloseStages.put(node, false);
+        mayClose = !node.filterBlocksForBuildingDeps(
+                (CtAbstractInvocation<?> inv) -> mayCloseStages(inv)).isEmpty();
+        mayCloseStages.put(node, mayClose);
+        return mayClose;
+    }
+
+    void rewriteToRaw(CtInvocation<?> guard) {
+        CtMethod<?> method = method(guard);
+        StageModel stage = guardedStage(guard);
+        CtExpression<?> target = guard.getTarget();
+        CtField<?> field = stage.getFieldByAccessMethod(method);
+        CtExpression<?> raw;
+        if (field != null) {
+            CtFieldAccess fieldRead = guard.getFactory().Core().createFieldRead();
+            fieldRead.setVariable(field.getReference());
+            fieldRead.setType(field.getType());
+            fieldRead.setTarget(target);
+            raw = fieldRead;
+        } else {
+            CtMethod<?> stageMethod = stage.getStageMethodByGuarded(method);
+            raw = guard.getFactory().Code().createInvocation(
+                    target, stageMethod.getReference(), guard.getArguments());
+        }
+        if (target != null)
+            target.setParent(raw);
+        guard.replace(raw);
+    }
+}
@@ -73,6 +73,10 @@ public class MethodNode extends DependencyNode {
         return m2.getParameters().equals(m1.getParameters());
     }
 
+    List<CtMethod<?>> getMethods() {
+        return methods;
+    }
+
     @Override
     public Optional<CtMethod<Void>> getCloseMethod() {
         return getCloseDependantsMethod();
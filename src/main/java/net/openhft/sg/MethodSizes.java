@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg;
+
+import spoon.reflect.code.*;
+import spoon.reflect.cu.SourcePosition;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.declaration.CtType;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.visitor.CtScanner;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptySet;
+import static spoon.reflect.declaration.ModifierKind.PRIVATE;
+
+/**
+ * Rough estimation of bytecode sizes of methods, compared against HotSpot's default inlining
+ * and compilation thresholds. Estimations are intentionally a bit pessimistic, they are not
+ * supposed to be precise, only to catch methods which are close to the thresholds.
+ */
+final class MethodSizes {
+
+    /** HotSpot's -XX:MaxInlineSize default */
+    static final int MAX_INLINE_SIZE = 35;
+    /** HotSpot's -XX:FreqInlineSize default */
+    static final int FREQ_INLINE_SIZE = 325;
+    /** HotSpot's -XX:HugeMethodLimit, methods bigger than that are never JIT-compiled */
+    static final int HUGE_METHOD_LIMIT = 8000;
+
+    static int estimate(CtElement element) {
+        int[] size = {0};
+        // scan(), not accept(), so that the weight of the given element itself is counted
+        new CtScanner() {
+            @Override
+            public void scan(CtElement e) {
+                if (e == null)
+                    return;
+                size[0] += weight(e);
+                if (e instanceof CtLambda)
+                    return; // lambda body is compiled to a separate method
+                if (e instanceof CtNewClass) {
+                    // anonymous class is compiled to a separate class
+                    ((CtNewClass<?>) e).getArguments().forEach(this::scan);
+                    return;
+                }
+                super.scan(e);
+            }
+        }.scan(element);
+        return size[0];
+    }
+
+    private static int weight(CtElement e) {
+        if (e instanceof CtCodeSnippetStatement)
+            return ((CtCodeSnippetStatement) e).getValue().length() / 3;
+        if (e instanceof CtCodeSnippetExpression)
+            return ((CtCodeSnippetExpression<?>) e).getValue().length() / 3;
+        if (e instanceof CtConstructorCall)
+            return 7; // new, dup, invokespecial
+        if (e instanceof CtInvocation)
+            return 3;
+        if (e instanceof CtFieldAccess)
+            return 3;
+        if (e instanceof CtThisAccess)
+            return 1;
+        if (e instanceof CtVariableAccess || e instanceof CtLiteral)
+            return 2;
+        if (e instanceof CtBinaryOperator || e instanceof CtUnaryOperator)
+            return 4; // operation, and often a conditional branch
+        if (e instanceof CtOperatorAssignment)
+            return 3;
+        if (e instanceof CtAssignment || e instanceof CtLocalVariable)
+            return 2;
+        if (e instanceof CtIf || e instanceof CtBreak || e instanceof CtContinue)
+            return 3;
+        if (e instanceof CtLoop || e instanceof CtConditional)
+            return 6;
+        if (e instanceof CtReturn || e instanceof CtThrow || e instanceof CtArrayAccess)
+            return 1;
+        if (e instanceof CtAssert)
+            return 15; // $assertionsDisabled check, new AssertionError(), athrow
+        if (e instanceof CtSwitch)
+            return 12;
+        if (e instanceof CtCase)
+            return 8; // jump table entry and goto
+        if (e instanceof CtNewArray || e instanceof CtLambda || e instanceof CtCatch)
+            return 5;
+        return 0;
+    }
+
+    static boolean userWritten(CtMethod<?> method) {
+        SourcePosition position = method.getPosition();
+        if (position instanceof LinedSourcePosition)
+            position = ((LinedSourcePosition) position).delegate;
+        return position != null && position.getFile() != null;
+    }
+
+    /**
+     * If the body of the given void method, which should consist of independent statements
+     * without local variables and returns on the top level, is estimated to exceed
+     * {@link #HUGE_METHOD_LIMIT}, moves its statements to several private helper methods.
+     */
+    static void outlineIfHuge(CtMethod<Void> method) {
+        CtBlock<Void> body = method.getBody();
+        if (estimate(body) <= HUGE_METHOD_LIMIT)
+            return;
+        List<CtStatement> statements = new ArrayList<>(body.getStatements());
+        for (CtStatement statement : statements) {
+            if (statement instanceof CtLocalVariable || statement instanceof CtReturn ||
+                    statement instanceof CtCodeSnippetStatement) {
+                throw new StageGraphCompilationException(
+                        "Cannot outline parts of " + method.getSimpleName() + "()");
+            }
+        }
+        Factory f = method.getFactory();
+        CtType<?> declaringType = method.getDeclaringType();
+        List<List<CtStatement>> parts = new ArrayList<>();
+        List<CtStatement> part = new ArrayList<>();
+        int partSize = 0;
+        for (CtStatement statement : statements) {
+            int statementSize = estimate(statement);
+            // leave a twofold margin for estimation errors
+            if (!part.isEmpty() && partSize + statementSize > HUGE_METHOD_LIMIT / 2) {
+                parts.add(part);
+                part = new ArrayList<>();
+                partSize = 0;
+            }
+            part.add(statement);
+            partSize += statementSize;
+        }
+        parts.add(part);
+        CtBlock<Void> newBody = f.Core().createBlock();
+        for (int i = 0; i < parts.size(); i++) {
+            CtBlock<Void> partBody = f.Core().createBlock();
+            parts.get(i).forEach(partBody::addStatement);
+            CtMethod<Void> partMethod = f.Method().create((CtClass<?>) declaringType,
+                    EnumSet.of(PRIVATE), f.Type().VOID_PRIMITIVE,
+                    method.getSimpleName() + "Part" + i, emptyList(), emptySet(), partBody);
+            partMethod.setParent(declaringType);
+            newBody.addStatement(f.Code().createInvocation(
+                    f.Code().createThisAccess(declaringType.getReference()),
+                    partMethod.getReference()));
+        }
+        method.setBody(newBody);
+        newBody.setParent(method);
+    }
+
+    /**
+     * Returns warnings about user-written methods, which are estimated to exceed
+     * {@link #FREQ_INLINE_SIZE} or {@link #HUGE_METHOD_LIMIT}.
+     */
+    static List<String> userMethodWarnings(CtClass<?> mergedClass) {
+        List<String> warnings = new ArrayList<>();
+        mergedClass.getElements((CtMethod<?> m) -> m.getBody() != null && userWritten(m))
+                .forEach(m -> {
+                    int size = estimate(m.getBody());
+                    String threshold;
+                    if (size > HUGE_METHOD_LIMIT) {
+                        threshold = "HugeMethodLimit (" + HUGE_METHOD_LIMIT +
+                                "), it won't be JIT-compiled";
+                    } else if (size > FREQ_INLINE_SIZE) {
+                        threshold = "FreqInlineSize (" + FREQ_INLINE_SIZE +
+                                "), it won't be inlined";
+                    } else {
+                        return;
+                    }
+                    warnings.add(m.getDeclaringType().getSimpleName() + "." +
+                            m.getSimpleName() + "(): estimated bytecode size " + size +
+                            " exceeds " + threshold);
+                });
+        return warnings;
+    }
+
+    private MethodSizes() {}
+}
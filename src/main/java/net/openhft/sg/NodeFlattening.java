@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg;
+
+import spoon.reflect.code.*;
+import spoon.reflect.declaration.*;
+import spoon.reflect.reference.CtExecutableReference;
+import spoon.reflect.reference.CtFieldReference;
+import spoon.reflect.reference.CtTypeReference;
+
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.util.Collections.emptyList;
+import static java.util.stream.Collectors.toList;
+import static net.openhft.sg.ExtensionChains.add;
+
+/**
+ * Moves fields and methods of the merged class of a child compilation node into the merged
+ * class of the parent node, renaming them on name clashes with the parent's members
+ * ({@code x} of the node, referenced by the field {@code p2}, becomes {@code p2_x}). All
+ * accesses like {@code this.p2.x()} become {@code this.x()}, the nested class and the field
+ * referencing the child node are removed.
+ *
+ * <p>A node is not flattened (and stays a nested class), if it is instantiated lazily, if the
+ * child node object escapes, i. e. it is passed somewhere as a value, or if its merged class has
+ * anything but fields, methods and a single no-arg constructor: super types, type parameters,
+ * nested types or initializer blocks.
+ */
+final class NodeFlattening {
+
+    private final CtClass<?> topClass;
+    private final CtClass<?> parentClass;
+    private final CtClass<?> childClass;
+    private final CtField<?> accessField;
+    private final List<CtMethod<?>> accessorMethods;
+    private final List<CtFieldRead<?>> accessFieldReads;
+
+    private NodeFlattening(CtClass<?> topClass, CompilationNode parent, CompilationNode child) {
+        this.topClass = topClass;
+        parentClass = parent.getMergedClass();
+        childClass = child.getMergedClass();
+        accessField = child.parentAccessField;
+        accessorMethods = accessField == null ? emptyList() :
+                parentClass.getMethodsByName(accessField.getSimpleName()).stream()
+                        .filter(m -> m.getParameters().isEmpty())
+                        .collect(toList());
+        accessFieldReads = topClass.getElements((CtFieldRead<?> read) ->
+                read.getVariable().getDeclaration() == accessField && !inAccessor(read) &&
+                        !construction(read.getParent()));
+    }
+
+    /**
+     * Assignment of the access field, moved from the field initializer to a constructor.
+     */
+    private boolean construction(CtElement e) {
+        return e instanceof CtAssignment &&
+                ((CtAssignment<?, ?>) e).getAssigned() instanceof CtFieldAccess &&
+                ((CtFieldAccess<?>) ((CtAssignment<?, ?>) e).getAssigned()).getVariable()
+                        .getDeclaration() == accessField;
+    }
+
+    /**
+     * Reads in the final accessor, generated for the access field, which is removed.
+     */
+    private boolean inAccessor(CtElement e) {
+        for (; e != null && !(e instanceof CtTypeMember); e = e.getParent()) {}
+        CtElement member = e;
+        return accessorMethods.stream().anyMatch(m -> m == member);
+    }
+
+    /**
+     * Flattens child nodes of the given node, bottom-up.
+     *
+     * @return if all child nodes are flattened
+     */
+    static boolean flattenChildNodes(CtClass<?> topClass, CompilationNode node) {
+        boolean allFlattened = true;
+        for (CompilationNode child : node.innerNodes()) {
+            boolean childFlattened = flattenChildNodes(topClass, child) &&
+                    !child.instantiatesLazily() &&
+                    new NodeFlattening(topClass, node, child).flatten();
+            allFlattened &= childFlattened;
+        }
+        return allFlattened;
+    }
+
+    private boolean flatten() {
+        if (!canFlatten())
+            return false;
+        // Spoon elements are equal structurally, e. g. same fields in different classes
+        Map<CtField<?>, List<CtFieldReference<?>>> fieldRefs = new IdentityHashMap<>();
+        childClass.getFields().forEach(f -> fieldRefs.put(f, new ArrayList<>()));
+        topClass.getElements((CtFieldReference<?> ref) -> {
+            List<CtFieldReference<?>> refs = fieldRefs.get(ref.getDeclaration());
+            if (refs != null)
+                refs.add(ref);
+            return false;
+        });
+        Map<CtMethod<?>, List<CtExecutableReference<?>>> methodRefs = new IdentityHashMap<>();
+        childClass.getMethods().forEach(m -> methodRefs.put(m, new ArrayList<>()));
+        topClass.getElements((CtExecutableReference<?> ref) -> {
+            List<CtExecutableReference<?>> refs = methodRefs.get(ref.getDeclaration());
+            if (refs != null)
+                refs.add(ref);
+            return false;
+        });
+
+        // child node accesses from the outside, this.p2.x -> this.x
+        for (CtFieldRead<?> read : accessFieldReads) {
+            CtTargetedExpression<?, CtExpression<?>> access =
+                    (CtTargetedExpression<?, CtExpression<?>>) read.getParent();
+            access.setTarget(read.getTarget());
+            read.getTarget().setParent(access);
+        }
+        // child node's own this accesses
+        CtTypeReference parentType = parentClass.getReference();
+        childClass.getElements((CtThisAccess<?> thisAccess) ->
+                thisAccess.getType() != null &&
+                        thisAccess.getType().getDeclaration() == childClass)
+                .forEach(thisAccess -> thisAccess.setType(parentType));
+
+        Map<String, String> renames = new HashMap<>();
+        List<CtTypeMember> movedMembers = new ArrayList<>();
+        Set<String> fieldNames = new HashSet<>();
+        parentClass.getFields().forEach(f -> fieldNames.add(f.getSimpleName()));
+        fieldRefs.forEach((field, refs) -> {
+            String name = uniqueName(field.getSimpleName(), fieldNames);
+            renames.put(field.getSimpleName(), name);
+            movedMembers.add(field);
+            childClass.removeField(field);
+            field.setSimpleName(name);
+            add(parentClass, field, parentClass::addField);
+            refs.forEach(ref -> {
+                ref.setSimpleName(name);
+                ref.setDeclaringType(parentType);
+            });
+        });
+        Set<String> methodNames = new HashSet<>();
+        parentClass.getMethods().forEach(m -> methodNames.add(m.getSimpleName()));
+        methodRefs.forEach((method, refs) -> {
+            String name = uniqueName(method.getSimpleName(), methodNames);
+            renames.put(method.getSimpleName(), name);
+            movedMembers.add(method);
+            childClass.removeMethod(method);
+            method.setSimpleName(name);
+            add(parentClass, method, parentClass::addMethod);
+            refs.forEach(ref -> {
+                ref.setSimpleName(name);
+                ref.setDeclaringType(parentType);
+            });
+        });
+        renameInSnippets(renames, movedMembers);
+
+        replaceChildConstruction();
+        parentClass.removeField(accessField);
+        parentClass.removeNestedType(childClass);
+        return true;
+    }
+
+    private boolean canFlatten() {
+        if (accessField == null || accessField.getDeclaringType() != parentClass)
+            return false;
+        if (!childClass.getFormalTypeParameters().isEmpty() ||
+                !childClass.getSuperInterfaces().isEmpty() ||
+                childClass.getSuperclass() != null ||
+                !childClass.getNestedTypes().isEmpty() ||
+                !childClass.getAnonymousExecutables().isEmpty()) {
+            return false;
+        }
+        List<CtConstructor<?>> constructors = childConstructors();
+        if (constructors.size() > 1 ||
+                constructors.stream().anyMatch(c -> !c.getParameters().isEmpty())) {
+            return false;
+        }
+        // the child node object escapes
+        for (CtFieldRead<?> read : accessFieldReads) {
+            CtElement readParent = read.getParent();
+            if (!(readParent instanceof CtFieldAccess || readParent instanceof CtInvocation) ||
+                    ((CtTargetedExpression<?, ?>) readParent).getTarget() != read ||
+                    !childMember(readParent)) {
+                return false;
+            }
+        }
+        if (!childClass.getElements((CtThisAccess<?> thisAccess) ->
+                thisAccess.getType() != null &&
+                        thisAccess.getType().getDeclaration() == childClass &&
+                        !(thisAccess.getParent() instanceof CtTargetedExpression &&
+                                ((CtTargetedExpression<?, ?>) thisAccess.getParent())
+                                        .getTarget() == thisAccess)).isEmpty()) {
+            return false;
+        }
+        return topClass.getElements((CtVariable<?> v) -> v != accessField &&
+                v.getType() != null && v.getType().getDeclaration() == childClass).isEmpty();
+    }
+
+    private boolean childMember(CtElement access) {
+        CtElement declaration = access instanceof CtFieldAccess ?
+                ((CtFieldAccess<?>) access).getVariable().getDeclaration() :
+                ((CtInvocation<?>) access).getExecutable().getDeclaration();
+        return declaration != null && declaration.getParent() == childClass;
+    }
+
+    private List<CtConstructor<?>> childConstructors() {
+        return childClass.getConstructors().stream()
+                .filter(c -> !c.isImplicit())
+                .collect(toList());
+    }
+
+    /**
+     * The child node object is constructed either in the field initializer, or in the parent
+     * class constructors, when the initializer is moved there. The statements of the child
+     * node's constructor take place of the construction.
+     */
+    private void replaceChildConstruction() {
+        List<CtStatement> childInit = childConstructors().stream()
+                .flatMap(c -> c.getBody().getStatements().stream())
+                .collect(toList());
+        List<CtAssignment<?, ?>> constructions =
+                parentClass.getElements((CtAssignment<?, ?> a) -> construction(a));
+        for (CtAssignment<?, ?> construction : constructions) {
+            CtBlock<?> block = (CtBlock<?>) construction.getParent();
+            for (CtStatement statement : childInit) {
+                CtStatement copy = statement.getFactory().Core().clone(statement);
+                construction.insertBefore(copy);
+                copy.setParent(block);
+            }
+            block.removeStatement(construction);
+        }
+        if (constructions.isEmpty() && !childInit.isEmpty()) {
+            parentClass.getConstructors().forEach(c -> childInit.forEach(statement -> {
+                CtStatement copy = statement.getFactory().Core().clone(statement);
+                c.getBody().insertBegin(copy);
+            }));
+        }
+        accessorMethods.forEach(parentClass::removeMethod);
+    }
+
+    private String uniqueName(String name, Set<String> takenNames) {
+        String uniqueName = name;
+        for (int i = 1; takenNames.contains(uniqueName); i++) {
+            uniqueName = accessField.getSimpleName() + "_" + name + (i > 1 ? i : "");
+        }
+        takenNames.add(uniqueName);
+        return uniqueName;
+    }
+
+    /**
+     * Code snippets, generated for the child node, reference its fields and methods by simple
+     * names.
+     */
+    private static void renameInSnippets(
+            Map<String, String> renames, List<CtTypeMember> movedMembers) {
+        renames.entrySet().removeIf(e -> e.getKey().equals(e.getValue()));
+        if (renames.isEmpty())
+            return;
+        Pattern names = Pattern.compile("\\b(" + String.join("|", renames.keySet()) + ")\\b");
+        for (CtTypeMember member : movedMembers) {
+            member.getElements((CtElement e) -> {
+                if (e instanceof CtCodeSnippet) {
+                    CtCodeSnippet snippet = (CtCodeSnippet) e;
+                    Matcher m = names.matcher(snippet.getValue());
+                    StringBuffer renamed = new StringBuffer();
+                    while (m.find())
+                        m.appendReplacement(renamed, renames.get(m.group(1)));
+                    m.appendTail(renamed);
+                    snippet.setValue(renamed.toString());
+                }
+                return false;
+            });
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg;
+
+import spoon.reflect.code.*;
+import spoon.reflect.declaration.*;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtExecutableReference;
+import spoon.reflect.reference.CtTypeParameterReference;
+import spoon.reflect.reference.CtTypeReference;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.stream.Collectors.toList;
+import static net.openhft.sg.StageGraphCompilationException.sgce;
+
+/**
+ * Replaces a type parameter of a staged class with a primitive type ({@code long}, {@code int}
+ * or {@code double}) across fields, methods and their bodies, so that the class is compiled
+ * without boxing. Usages of the type parameter as a type argument ({@code List<K>}) are replaced
+ * with the wrapper type.
+ *
+ * <p>{@code null}, where a value of the specialized type is expected, becomes the default
+ * primitive value, {@code 0}. Any value is valid for a specialized field, so stages with
+ * {@code K key = null;} fields keep their init state in separate init bits, see {@link
+ * StageModel#canPackInitState()}. Comparisons of specialized values with {@code null} are not
+ * supported. {@code a.equals(b)} becomes {@code a == b}, if both values are specialized, and
+ * {@code Wrapper.valueOf(a).equals(b)} otherwise. {@code a.hashCode()} becomes a call of the
+ * static {@code hashCode()} method of the wrapper.
+ */
+final class PrimitiveSpecialization {
+
+    private final CtClass<?> ctClass;
+    private final String typeParamName;
+    private final CtTypeReference<?> primitive;
+    private final Factory f;
+
+    PrimitiveSpecialization(CtClass<?> ctClass, String typeParamName, Class<?> primitiveType) {
+        this.ctClass = ctClass;
+        this.typeParamName = typeParamName;
+        f = ctClass.getFactory();
+        if (primitiveType != long.class && primitiveType != int.class &&
+                primitiveType != double.class) {
+            throw sgce("Type parameters could be specialized to long, int or double, " +
+                    primitiveType + " given");
+        }
+        primitive = f.Type().createReference(primitiveType);
+    }
+
+    /**
+     * @return fields, which {@code null} default values are specialized
+     */
+    List<CtField<?>> specialize() {
+        List<CtTypeParameterReference> typeParams = ctClass.getFormalTypeParameters().stream()
+                .filter(p -> !p.getSimpleName().equals(typeParamName))
+                .collect(toList());
+        if (typeParams.size() == ctClass.getFormalTypeParameters().size()) {
+            throw sgce(ctClass.getSimpleName() + " doesn't declare type parameter " +
+                    typeParamName);
+        }
+        ctClass.setFormalTypeParameters(typeParams);
+        ExtensionChains.replaceTypeParam(ctClass, typeParamName, primitive, primitive.box());
+        List<CtField<?>> specializedUninitFields = new ArrayList<>();
+        for (CtLiteral<?> literal : ctClass.getElements((CtLiteral<?> literal) ->
+                literal.getValue() == null && specialized(expectedType(literal)))) {
+            if (literal.getParent() instanceof CtBinaryOperator) {
+                throw sgce("Specialized value couldn't be compared with null: " +
+                        literal.getParent());
+            }
+            if (literal.getParent() instanceof CtField)
+                specializedUninitFields.add((CtField<?>) literal.getParent());
+            literal.replace(defaultValue());
+        }
+        ctClass.getElements((CtInvocation<?> invocation) -> invocation.getTarget() != null &&
+                specialized(invocation.getTarget().getType()) &&
+                (equalsCall(invocation) || hashCodeCall(invocation)))
+                .forEach(this::replaceObjectMethodCall);
+        return specializedUninitFields;
+    }
+
+    private boolean specialized(CtTypeReference<?> type) {
+        return type != null && type.getSimpleName().equals(primitive.getSimpleName());
+    }
+
+    private static CtTypeReference<?> expectedType(CtLiteral<?> literal) {
+        CtElement parent = literal.getParent();
+        if (parent instanceof CtVariable &&
+                ((CtVariable<?>) parent).getDefaultExpression() == literal) {
+            return ((CtVariable<?>) parent).getType();
+        }
+        if (parent instanceof CtAssignment &&
+                ((CtAssignment<?, ?>) parent).getAssignment() == literal) {
+            return ((CtAssignment<?, ?>) parent).getAssigned().getType();
+        }
+        if (parent instanceof CtBinaryOperator) {
+            CtBinaryOperator<?> op = (CtBinaryOperator<?>) parent;
+            return (op.getLeftHandOperand() == literal ?
+                    op.getRightHandOperand() : op.getLeftHandOperand()).getType();
+        }
+        if (parent instanceof CtReturn) {
+            CtMethod<?> method = parent.getParent(CtMethod.class);
+            return method != null ? method.getType() : null;
+        }
+        return null;
+    }
+
+    private CtLiteral<?> defaultValue() {
+        Object value = primitive.equals(f.Type().LONG_PRIMITIVE) ? (Object) 0L :
+                primitive.equals(f.Type().INTEGER_PRIMITIVE) ? (Object) 0 : (Object) 0.0;
+        CtLiteral<Object> defaultValue = f.Code().createLiteral(value);
+        defaultValue.setType((CtTypeReference) primitive);
+        return defaultValue;
+    }
+
+    private static boolean equalsCall(CtInvocation<?> invocation) {
+        return invocation.getExecutable().getSimpleName().equals("equals") &&
+                invocation.getArguments().size() == 1;
+    }
+
+    private static boolean hashCodeCall(CtInvocation<?> invocation) {
+        return invocation.getExecutable().getSimpleName().equals("hashCode") &&
+                invocation.getArguments().isEmpty();
+    }
+
+    private void replaceObjectMethodCall(CtInvocation<?> invocation) {
+        CtExpression<?> target = invocation.getTarget();
+        CtTypeReference<?> wrapper = primitive.box();
+        if (equalsCall(invocation)) {
+            CtExpression<?> other = invocation.getArguments().get(0);
+            if (specialized(other.getType())) {
+                CtBinaryOperator<Boolean> eq = f.Code().createBinaryOperator(
+                        target, other, BinaryOperatorKind.EQ);
+                eq.setType(f.Type().BOOLEAN_PRIMITIVE);
+                invocation.replace(eq);
+            } else {
+                // the other object might be of another type, or null
+                CtExecutableReference<Object> valueOf = f.Executable().createReference(
+                        wrapper, true, (CtTypeReference) wrapper, "valueOf", primitive);
+                CtInvocation<?> boxed = f.Code().createInvocation(
+                        f.Code().createTypeAccess(wrapper), valueOf, target);
+                invocation.setTarget(boxed);
+            }
+        } else {
+            CtExecutableReference<Integer> hashCode = f.Executable().createReference(
+                    wrapper, true, f.Type().INTEGER_PRIMITIVE, "hashCode", primitive);
+            CtInvocation<Integer> staticHashCode = f.Code().createInvocation(
+                    f.Code().createTypeAccess(wrapper), hashCode, target);
+            staticHashCode.setType(f.Type().INTEGER_PRIMITIVE);
+            invocation.replace(staticHashCode);
+        }
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg;
+
+import spoon.reflect.code.*;
+import spoon.reflect.declaration.CtMethod;
+
+import java.util.Collection;
+import java.util.List;
+
+import static java.util.stream.Collectors.toList;
+import static net.openhft.sg.GuardElimination.conditional;
+import static net.openhft.sg.GuardElimination.deferred;
+import static net.openhft.sg.StageGraphCompilationException.sgce;
+
+/**
+ * Groups stages, which are always init together, and eliminates guards within each group. A
+ * stage is grouped with the stage, which is its only dependant (no other stages nor methods
+ * depend on it), or which it is declared {@link GroupedWith}, if all init methods of the
+ * dependant stage access the stage unconditionally, at the top level of their bodies, before
+ * anything that might skip the access, both stages belong to the same compilation node, and the
+ * close method of the stage is generated. Then, when the dependant stage is init, the grouped
+ * stage is init as well:
+ * <ul>
+ *     <li>guards of the grouped stage are eliminated from stage methods of the dependant stage,
+ *     because those are called only when the dependant stage is init;</li>
+ *     <li>the close method of the dependant stage closes the grouped stage too, so that the
+ *     group is closed as a whole.</li>
+ * </ul>
+ * Stages grouped with a grouped stage are closed with the whole group as well.
+ *
+ * <p>This is intra-group guard elimination, not a merge of the stages: each stage of a group
+ * keeps its own init state, init method and guard. Accesses from outside the stage methods of
+ * the dependant stage, including its init methods, are still guarded, so that a grouped stage
+ * is still init on its own, if it is accessed before the dependant stage is init.
+ *
+ * <p>With a {@link StageProfile}, a stage, which it and its only dependant are both profiled,
+ * is grouped if the profile shows that it is init at least as often as the dependant, and is
+ * not grouped otherwise, regardless of {@link Compiler#groupStages()}: closing it together with
+ * the dependant would init it more often.
+ */
+final class StageGroups {
+
+    private final CompilationContext cxt;
+    private final GuardElimination guards;
+    private final StageProfile profile;
+
+    StageGroups(CompilationContext cxt, StageProfile profile) {
+        this.cxt = cxt;
+        this.guards = new GuardElimination(cxt);
+        this.profile = profile;
+    }
+
+    /**
+     * Should be called after guards are inserted, but before they are eliminated or rewritten.
+     *
+     * @param automatically if stages, not declared {@link GroupedWith} any stage, are grouped
+     *        with their only dependant when possible
+     */
+    void groupStages(boolean automatically) {
+        List<StageModel> stages = cxt.allStageModels().collect(toList());
+        for (StageModel stage : stages) {
+            StageModel groupedWith;
+            if (stage.getDeclaredGroupedWith() != null) {
+                groupedWith = declaredGroupedWith(stage, stages);
+                if (!canGroup(stage, groupedWith)) {
+                    throw sgce(stage.qualifiedName() + " couldn't be grouped with " +
+                            groupedWith.qualifiedName() + ", its close method should be " +
+                            "generated, and all init methods of " + groupedWith.qualifiedName() +
+                            " should access it unconditionally");
+                }
+            } else {
+                groupedWith = onlyDependant(stage);
+                if (groupedWith != null && !(groupAutomatically(stage, groupedWith, automatically)
+                        && canGroup(stage, groupedWith))) {
+                    groupedWith = null;
+                }
+            }
+            if (groupedWith != null) {
+                groupedWith.group(stage);
+                eliminateGuards(groupedWith, stage);
+            }
+        }
+    }
+
+    private static StageModel declaredGroupedWith(StageModel stage, List<StageModel> stages) {
+        String name = stage.getDeclaredGroupedWith();
+        return stages.stream()
+                .filter(s -> s.declaringType == stage.declaringType && s.name.equals(name))
+                .findAny()
+                .orElseThrow(() -> sgce(stage.qualifiedName() + " is declared grouped with " +
+                        name + ", which is not a stage of " +
+                        stage.declaringType.getSimpleName()));
+    }
+
+    private static StageModel onlyDependant(StageModel stage) {
+        Collection<DependencyNode> dependants = stage.getDependants();
+        if (dependants.size() != 1 || !(dependants.iterator().next() instanceof StageModel))
+            return null;
+        return (StageModel) dependants.iterator().next();
+    }
+
+    private boolean groupAutomatically(
+            StageModel stage, StageModel dependant, boolean automatically) {
+        if (profile != null && profile.profiled(stage) && profile.profiled(dependant))
+            return profile.initTogether(stage, dependant);
+        return automatically;
+    }
+
+    private boolean canGroup(StageModel stage, StageModel dependant) {
+        // declared close logic might be not idempotent, while the stage is closed both by its
+        // own close method and by the close method of the dependant, during the close cascade
+        if (stage.alwaysInit() || stage.getNoArgInitStageMethod() == null ||
+                stage.closeMethodDeclared()) {
+            return false;
+        }
+        if (dependant == stage || dependant.alwaysInit() ||
+                cxt.getCompilationNode(dependant.declaringType) !=
+                        cxt.getCompilationNode(stage.declaringType) ||
+                dependant.getInitStageMethods().isEmpty() ||
+                !dependant.stageMethodsCalledOnlyWhenInit()) {
+            return false;
+        }
+        return dependant.getInitStageMethods().stream()
+                .allMatch(init -> accessesUnconditionally(init, stage));
+    }
+
+    private boolean accessesUnconditionally(CtMethod<?> method, StageModel stage) {
+        if (method.getBody() == null)
+            return false;
+        for (CtStatement statement : method.getBody().getStatements()) {
+            if (statement instanceof CtBlock || statement instanceof CtIf ||
+                    statement instanceof CtLoop || statement instanceof CtTry ||
+                    statement instanceof CtSwitch || statement instanceof CtSynchronized) {
+                return false;
+            }
+            for (CtInvocation<?> guard : guards.guards(statement)) {
+                if (guards.guardedStage(guard) == stage && accessesThisContext(guard) &&
+                        !deferred(guard, statement) && !conditional(guard, statement)) {
+                    return true;
+                }
+            }
+            if (statement instanceof CtReturn || statement instanceof CtThrow)
+                return false;
+        }
+        return false;
+    }
+
+    private void eliminateGuards(StageModel dependant, StageModel stage) {
+        for (CtMethod<?> method : dependant.getStageMethods()) {
+            CtBlock<?> body = method.getBody();
+            if (body == null || guards.mayCloseStages(body))
+                continue;
+            for (CtInvocation<?> guard : guards.guards(body)) {
+                if (guards.guardedStage(guard) == stage && accessesThisContext(guard) &&
+                        !deferred(guard, body)) {
+                    guards.rewriteToRaw(guard);
+                }
+            }
+        }
+    }
+
+    private static boolean accessesThisContext(CtInvocation<?> guard) {
+        return guard.getTarget() == null || guard.getTarget() instanceof CtThisAccess;
+    }
+}
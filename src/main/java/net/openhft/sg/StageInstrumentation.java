@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg;
+
+import spoon.reflect.code.*;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtField;
+import spoon.reflect.declaration.CtParameter;
+import spoon.reflect.declaration.ModifierKind;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtExecutableReference;
+import spoon.reflect.reference.CtTypeReference;
+
+import java.util.*;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.emptySet;
+import static spoon.reflect.declaration.ModifierKind.*;
+
+/**
+ * Generates the runtime part of stage instrumentation in the root class:
+ * <ul>
+ *     <li>{@code static final} switches, {@code STAGE_STATS} and {@code STAGE_INIT_EVENTS},
+ *     read from {@code net.openhft.sg.stageStats} and {@code net.openhft.sg.stageInitEvents}
+ *     system properties. Counting and timing statements, inserted into stage methods, are
+ *     guarded by them, so JIT removes the instrumentation when they are off;</li>
+ *     <li>{@code StageInitEvent} JFR event, committed when a stage init takes longer than the
+ *     threshold;</li>
+ *     <li>{@code stageCounters()} method, returning a snapshot of counters of all stages, and
+ *     {@code initStages()}, returning the names of the stages which are currently init.</li>
+ * </ul>
+ *
+ * <p>Counters of each stage are: inits (calls of init methods), closes (calls of the close
+ * method or doClose(), when the stage is init, i. e. also closes by flattened close cascades,
+ * closes of stage groups and the global close), cascade closes (times when closing of dependants is
+ * triggered, because the stage is re-init or closed), slow guards (times when a guard found
+ * the stage not init and init it).
+ *
+ * <p>Init latencies are sampled (each N-th init of each stage is timed) into per-context
+ * log-linear histograms, when {@code STAGE_INIT_LATENCIES} switch is on, read from
+ * {@code net.openhft.sg.stageInitLatencies} system property. Histograms have
+ * {@value #LATENCY_BUCKETS} buckets: exact for latencies below 8 ns, eight buckets per power
+ * of two above, and the last bucket for latencies above 2^40 ns. The root class gets
+ * {@code addInitLatenciesTo(Map)} method, which adds the context's histograms to the given
+ * ones, so that histograms of many (e. g. pooled) contexts could be merged, and static
+ * {@code initLatencyPercentile(long[], double)} method.
+ *
+ * <p>Lifecycle tracing, when {@code STAGE_TRACE} switch is on, read from
+ * {@code net.openhft.sg.stageTrace} system property, writes a record on each stage init, close
+ * and cascade close (start of closing the stage's dependants) into the context's ring buffer.
+ * The buffer is a heap {@code ByteBuffer} by default, or could be replaced with e. g.
+ * a {@code MappedByteBuffer} via {@code setStageTraceBuffer()}. The first long in the buffer
+ * is the number of records ever written, then 16-byte records follow: a long of the stage id
+ * shifted left by 8 bits, or-ed with the event, and {@code System.nanoTime()}. Stage ids are
+ * indexes in {@link Compiler#getTracedStageNames()}, records are decoded with
+ * {@link StageTraceReader}.
+ */
+final class StageInstrumentation {
+
+    static final List<String> COUNTERS = asList("Inits", "Closes", "CascadeCloses", "SlowGuards");
+    static final int INITS = 0, CLOSES = 1, CASCADE_CLOSES = 2, SLOW_GUARDS = 3;
+    static final String STATS_SWITCH = "STAGE_STATS";
+    static final String EVENTS_SWITCH = "STAGE_INIT_EVENTS";
+    static final String EVENT_CLASS = "StageInitEvent";
+    static final String LATENCIES_SWITCH = "STAGE_INIT_LATENCIES";
+    static final String LATENCY_BUCKET_METHOD = "initLatencyBucket";
+    static final int LATENCY_BUCKETS = 304;
+    static final String TRACE_SWITCH = "STAGE_TRACE";
+    static final String TRACE_METHOD = "traceStage";
+    static final int TRACE_INIT = 0, TRACE_CLOSE = 1, TRACE_CASCADE_CLOSE = 2;
+
+    private final CompilationNode root;
+    private final Factory f;
+    private final boolean counters;
+    private final long slowInitThresholdNanos;
+    private final int initSampleRate;
+    private final int traceCapacity;
+    private final List<String> tracedStageNames = new ArrayList<>();
+
+    /**
+     * @param slowInitThresholdNanos negative if init events are off
+     * @param initSampleRate 0 if init latencies are not sampled
+     * @param traceCapacity 0 if stage lifecycle is not traced
+     */
+    StageInstrumentation(CompilationNode root, boolean counters, long slowInitThresholdNanos,
+                         int initSampleRate, int traceCapacity) {
+        this.root = root;
+        f = root.f;
+        this.counters = counters;
+        this.slowInitThresholdNanos = slowInitThresholdNanos;
+        this.initSampleRate = initSampleRate;
+        this.traceCapacity = traceCapacity;
+    }
+
+    void instrument(StageModel stage) {
+        if (counters)
+            stage.instrument(slowInitThresholdNanos >= 0);
+        if (initSampleRate > 0)
+            stage.sampleInitLatencies(initSampleRate);
+        if (traceCapacity > 0) {
+            stage.trace(tracedStageNames.size());
+            tracedStageNames.add(stage.qualifiedName());
+        }
+    }
+
+    List<String> getTracedStageNames() {
+        return tracedStageNames;
+    }
+
+    void generateSwitches(CtClass<?> rootClass) {
+        if (counters) {
+            switchField(rootClass, STATS_SWITCH,
+                    "java.lang.Boolean.getBoolean(\"net.openhft.sg.stageStats\")");
+        }
+        if (initSampleRate > 0)
+            generateLatencyHelpers(rootClass);
+        if (traceCapacity > 0) {
+            switchField(rootClass, TRACE_SWITCH,
+                    "java.lang.Boolean.getBoolean(\"net.openhft.sg.stageTrace\")");
+        }
+        if (slowInitThresholdNanos < 0)
+            return;
+        switchField(rootClass, EVENTS_SWITCH,
+                "java.lang.Boolean.getBoolean(\"net.openhft.sg.stageInitEvents\")");
+        CtClass<?> event = f.Class().create(rootClass, EVENT_CLASS);
+        event.setModifiers(EnumSet.of(PUBLIC, STATIC, FINAL));
+        event.setSuperclass(f.Type().createReference("jdk.jfr.Event"));
+        f.Field().create(event, EnumSet.noneOf(ModifierKind.class),
+                f.Type().createReference(String.class), "stage");
+        f.Field().create(event, EnumSet.noneOf(ModifierKind.class),
+                f.Type().LONG_PRIMITIVE, "durationNanos");
+        CtBlock<Void> body = f.Core().createBlock();
+        body.addStatement(f.Code().createCodeSnippetStatement(
+                "long durationNanos = java.lang.System.nanoTime() - startNanos"));
+        body.addStatement(f.Code().createCodeSnippetStatement(
+                "if (durationNanos <= " + slowInitThresholdNanos + "L) return"));
+        body.addStatement(f.Code().createCodeSnippetStatement(
+                EVENT_CLASS + " event = new " + EVENT_CLASS + "()"));
+        body.addStatement(f.Code().createCodeSnippetStatement("event.stage = stage"));
+        body.addStatement(f.Code().createCodeSnippetStatement(
+                "event.durationNanos = durationNanos"));
+        body.addStatement(f.Code().createCodeSnippetStatement("event.commit()"));
+        f.Method().create(event, EnumSet.of(STATIC), f.Type().VOID_PRIMITIVE, "commitIfSlow",
+                asList(parameter(f.Type().createReference(String.class), "stage"),
+                        parameter(f.Type().LONG_PRIMITIVE, "startNanos")),
+                emptySet(), body);
+    }
+
+    private void generateLatencyHelpers(CtClass<?> rootClass) {
+        switchField(rootClass, LATENCIES_SWITCH,
+                "java.lang.Boolean.getBoolean(\"net.openhft.sg.stageInitLatencies\")");
+        method(rootClass, EnumSet.of(STATIC), f.Type().INTEGER_PRIMITIVE,
+                LATENCY_BUCKET_METHOD, asList(parameter(f.Type().LONG_PRIMITIVE, "nanos")),
+                "if (nanos < 8L) return (int) java.lang.Math.max(nanos, 0L)",
+                "int exp = 63 - java.lang.Long.numberOfLeadingZeros(nanos)",
+                "if (exp > 39) return " + (LATENCY_BUCKETS - 1),
+                "return 8 + ((exp - 3) << 3) + (int) ((nanos >>> (exp - 3)) & 7L)");
+        method(rootClass, EnumSet.of(PUBLIC, STATIC), f.Type().LONG_PRIMITIVE,
+                "initLatencyBucketUpperBound",
+                asList(parameter(f.Type().INTEGER_PRIMITIVE, "bucket")),
+                "if (bucket < 8) return bucket",
+                "if (bucket == " + (LATENCY_BUCKETS - 1) + ") return java.lang.Long.MAX_VALUE",
+                "int exp = ((bucket - 8) >>> 3) + 3",
+                "return ((9L + ((bucket - 8) & 7)) << (exp - 3)) - 1L");
+        method(rootClass, EnumSet.of(PUBLIC, STATIC), f.Type().LONG_PRIMITIVE,
+                "initLatencyPercentile",
+                asList(parameter(f.Type().createArrayReference(f.Type().LONG_PRIMITIVE),
+                        "histogram"),
+                        parameter(f.Type().DOUBLE_PRIMITIVE, "percentile")),
+                "long total = 0L",
+                "for (long count : histogram) total += count",
+                "long rank = (long) java.lang.Math.ceil(total * percentile / 100.0)",
+                "long seen = 0L",
+                "for (int bucket = 0; bucket < histogram.length; bucket++) " +
+                        "if ((seen += histogram[bucket]) >= rank && seen > 0L) " +
+                        "return initLatencyBucketUpperBound(bucket)",
+                "return 0L");
+        method(rootClass, EnumSet.of(STATIC), f.Type().VOID_PRIMITIVE,
+                "addInitLatencies",
+                asList(parameter(histogramsType(), "histograms"),
+                        parameter(f.Type().createReference(String.class), "stage"),
+                        parameter(f.Type().createArrayReference(f.Type().LONG_PRIMITIVE),
+                                "latencies")),
+                "if (latencies == null) return",
+                "long[] histogram = histograms.get(stage)",
+                "if (histogram == null) histograms.put(stage, histogram = new long[" +
+                        LATENCY_BUCKETS + "])",
+                "for (int i = 0; i < " + LATENCY_BUCKETS + "; i++) histogram[i] += latencies[i]");
+    }
+
+    private <T> void method(CtClass<?> declaringClass, Set<ModifierKind> modifiers,
+                            CtTypeReference<T> type, String name,
+                            List<CtParameter<?>> parameters, String... statements) {
+        CtBlock<T> body = f.Core().createBlock();
+        for (String statement : statements) {
+            body.addStatement(f.Code().createCodeSnippetStatement(statement));
+        }
+        f.Method().create(declaringClass, modifiers, type, name, parameters, emptySet(), body);
+    }
+
+    private void switchField(CtClass<?> rootClass, String name, String value) {
+        CtField<Boolean> field = f.Field().create(rootClass, EnumSet.of(STATIC, FINAL),
+                f.Type().BOOLEAN_PRIMITIVE, name);
+        field.setDefaultExpression(f.Code().createCodeSnippetExpression(value));
+    }
+
+    private <T> CtParameter<T> parameter(CtTypeReference<T> type, String name) {
+        CtParameter<T> parameter = f.Core().createParameter();
+        parameter.setType(type);
+        parameter.setSimpleName(name);
+        return parameter;
+    }
+
+    void generateSnapshotMethods(List<StageModel> stages) {
+        CtClass<?> rootClass = root.classesToMerge.get(0);
+        if (counters)
+            generateCountersSnapshotMethods(rootClass, stages);
+        if (initSampleRate > 0)
+            generateAddInitLatenciesMethod(rootClass, stages);
+        if (traceCapacity > 0)
+            generateTraceBuffer(rootClass);
+    }
+
+    private void generateTraceBuffer(CtClass<?> rootClass) {
+        CtTypeReference<Object> bufferType = f.Type().createReference("java.nio.ByteBuffer");
+        CtField<Object> buffer = f.Field().create(rootClass, EnumSet.noneOf(ModifierKind.class),
+                bufferType, "stageTrace");
+        buffer.setDefaultExpression(f.Code().createCodeSnippetExpression(
+                TRACE_SWITCH + " ? java.nio.ByteBuffer.allocate(" +
+                        (16 + 16L * traceCapacity) + ") : null"));
+        f.Field().create(rootClass, EnumSet.noneOf(ModifierKind.class), f.Type().LONG_PRIMITIVE,
+                "stageTraceRecords");
+        method(rootClass, EnumSet.of(PUBLIC), f.Type().VOID_PRIMITIVE,
+                "setStageTraceBuffer", asList(parameter(bufferType, "buffer")),
+                "if (buffer.capacity() < 32) " +
+                        "throw new java.lang.IllegalArgumentException(\"Too small buffer\")",
+                "this.stageTrace = buffer",
+                "this.stageTraceRecords = buffer.getLong(0)");
+        method(rootClass, EnumSet.noneOf(ModifierKind.class), f.Type().VOID_PRIMITIVE,
+                TRACE_METHOD, asList(parameter(f.Type().INTEGER_PRIMITIVE, "stage"),
+                        parameter(f.Type().INTEGER_PRIMITIVE, "event")),
+                "java.nio.ByteBuffer trace = this.stageTrace",
+                "long record = this.stageTraceRecords++",
+                "int offset = 16 + (int) (record % ((trace.capacity() - 16) >>> 4)) * 16",
+                "trace.putLong(offset, (((long) stage) << 8) | event)",
+                "trace.putLong(offset + 8, java.lang.System.nanoTime())",
+                "trace.putLong(0, record + 1)");
+    }
+
+    private void generateCountersSnapshotMethods(CtClass<?> rootClass, List<StageModel> stages) {
+        CtTypeReference<Object> object = f.Type().OBJECT;
+        CtBlock<Map> countersBody = f.Core().createBlock();
+        countersBody.addStatement(f.Code().createCodeSnippetStatement(
+                "java.util.Map<java.lang.String, long[]> counters = " +
+                        "new java.util.LinkedHashMap<>()"));
+        CtExecutableReference<Object> put = f.Executable().createReference(
+                f.Type().createReference(Map.class), false, object, "put", object, object);
+        CtBlock<Set> initStagesBody = f.Core().createBlock();
+        initStagesBody.addStatement(f.Code().createCodeSnippetStatement(
+                "java.util.Set<java.lang.String> stages = new java.util.LinkedHashSet<>()"));
+        CtExecutableReference<Boolean> add = f.Executable().createReference(
+                f.Type().createReference(Set.class), false, f.Type().BOOLEAN_PRIMITIVE, "add",
+                object);
+        for (StageModel stage : stages) {
+            CtNewArray<long[]> values = f.Core().createNewArray();
+            values.setType((CtTypeReference) f.Type().createArrayReference(
+                    f.Type().LONG_PRIMITIVE));
+            stage.getCounterFields().forEach(counter -> values.addElement(read(stage, counter)));
+            countersBody.addStatement(f.Code().createInvocation(
+                    f.Code().createCodeSnippetExpression("counters"), put,
+                    f.Code().createLiteral(stage.qualifiedName()), values));
+
+            CtIf ifInit = f.Core().createIf();
+            ifInit.setCondition(stage.createReadyCheck(root));
+            ifInit.setThenStatement(f.Code().createInvocation(
+                    f.Code().createCodeSnippetExpression("stages"), add,
+                    f.Code().createLiteral(stage.qualifiedName())));
+            initStagesBody.addStatement(ifInit);
+        }
+        countersBody.addStatement(f.Code().createCodeSnippetStatement("return counters"));
+        initStagesBody.addStatement(f.Code().createCodeSnippetStatement("return stages"));
+
+        f.Method().create(rootClass, EnumSet.of(PUBLIC), histogramsType(), "stageCounters",
+                emptyList(), emptySet(), countersBody);
+        CtTypeReference<Set> stagesType = f.Type().createReference(Set.class);
+        stagesType.setActualTypeArguments(asList(f.Type().createReference(String.class)));
+        f.Method().create(rootClass, EnumSet.of(PUBLIC), stagesType, "initStages",
+                emptyList(), emptySet(), initStagesBody);
+    }
+
+    private void generateAddInitLatenciesMethod(CtClass<?> rootClass, List<StageModel> stages) {
+        CtTypeReference<long[]> histogram =
+                (CtTypeReference) f.Type().createArrayReference(f.Type().LONG_PRIMITIVE);
+        CtExecutableReference<Void> addInitLatencies = f.Executable().createReference(
+                rootClass.getReference(), true, f.Type().VOID_PRIMITIVE, "addInitLatencies",
+                f.Type().createReference(Map.class), f.Type().createReference(String.class),
+                histogram);
+        CtBlock<Void> body = f.Core().createBlock();
+        for (StageModel stage : stages) {
+            body.addStatement(f.Code().createInvocation(null, addInitLatencies,
+                    f.Code().createCodeSnippetExpression("histograms"),
+                    f.Code().createLiteral(stage.qualifiedName()),
+                    read(stage, stage.getInitLatenciesField())));
+        }
+        f.Method().create(rootClass, EnumSet.of(PUBLIC), f.Type().VOID_PRIMITIVE,
+                "addInitLatenciesTo", asList(parameter(histogramsType(), "histograms")),
+                emptySet(), body);
+    }
+
+    private CtTypeReference<Map> histogramsType() {
+        CtTypeReference<Map> type = f.Type().createReference(Map.class);
+        type.setActualTypeArguments(asList(
+                f.Type().createReference(String.class),
+                f.Type().createArrayReference(f.Type().LONG_PRIMITIVE)));
+        return type;
+    }
+
+    private <T> CtFieldRead<T> read(StageModel stage, CtField<T> field) {
+        CompilationNode node = root.cxt.getCompilationNode(stage.declaringType);
+        CtFieldRead<T> read = f.Core().createFieldRead();
+        read.setVariable(field.getReference());
+        read.setType(field.getType());
+        read.setTarget(root.access(node, AccessType.Read));
+        return read;
+    }
+}
@@ -20,14 +20,23 @@ package net.openhft.sg;
 import spoon.reflect.code.*;
 import spoon.reflect.declaration.CtClass;
 import spoon.reflect.declaration.CtElement;
+import spoon.reflect.declaration.CtExecutable;
 import spoon.reflect.declaration.CtField;
 import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.declaration.CtParameter;
+import spoon.reflect.declaration.CtTypeMember;
+import spoon.reflect.declaration.ModifierKind;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtArrayTypeReference;
+import spoon.reflect.reference.CtFieldReference;
 import spoon.reflect.reference.CtTypeReference;
 import spoon.reflect.visitor.Filter;
 
 import java.util.*;
+import java.util.function.Supplier;
 import java.util.stream.Stream;
 
+import static java.util.Optional.empty;
 import static java.util.Optional.of;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.Stream.concat;
@@ -52,6 +61,65 @@ public class StageModel extends DependencyNode {
     private CtMethod<Void> closeMethod;
     private List<CtStatement> closeMethodStatements;
     private CtMethod<Void> doCloseMethod;
+    /**
+     * Index of this stage's bit in the packed init state words of its compilation node,
+     * or -1 if init state is checked via the stage init method.
+     */
+    private int initBitIndex = -1;
+    /**
+     * Index of this stage's bit in the root's "stages to close" words, or -1 if global close
+     * visits all stages.
+     */
+    private int closeBitIndex = -1;
+    private boolean outlineSlowInitPath = false;
+    private boolean alwaysInit = false;
+    private CompilationNode epochNode;
+    private CtField<Long> stageEpochField;
+    private CtField<Integer> versionField;
+    private CtField<Long> validEpochField;
+    private Map<StageModel, CtField<Integer>> dependencyVersionFields = new LinkedHashMap<>();
+    private CtMethod<Boolean> freshMethod;
+    private CtMethod<Void> refreshMethod;
+    private CtMethod<Void> slowInitMethod;
+    /**
+     * Statements, generated before exits of init methods, which don't depend on the locals of
+     * init methods and could be moved to a separate method.
+     */
+    private final Set<CtStatement> initEpilogueStatements =
+            Collections.newSetFromMap(new IdentityHashMap<>());
+    /**
+     * Runtime counters of this stage, in {@link StageInstrumentation#COUNTERS} order, or null
+     * if the stage is not instrumented.
+     */
+    private List<CtField<Long>> counterFields;
+    private boolean initEvents = false;
+    private CtField<long[]> initLatenciesField;
+    private CtField<Integer> initSampleTickField;
+    private int initSampleRate;
+    /**
+     * Id of this stage in lifecycle trace records, or -1 if the stage is not traced.
+     */
+    private int traceId = -1;
+    /**
+     * Stages, grouped with this stage by {@link StageGroups}, dependants first.
+     */
+    private final List<StageModel> groupedStages = new ArrayList<>();
+    /**
+     * The name of the stage, which this stage is declared {@link GroupedWith}, or {@code null}.
+     */
+    private String declaredGroupedWith;
+    /**
+     * The stage this stage is grouped with by {@link StageGroups}, or {@code null}.
+     */
+    private StageModel groupedWith;
+    private boolean shortCircuitSameArgumentInits = false;
+    /**
+     * Arguments of the last successful call of each parameterized init method, and the index
+     * of that method in {@link #initStageMethods} plus one (or zero, if it is none of them), if
+     * the stage has several init methods.
+     */
+    private final List<CtField<?>> initArgFields = new ArrayList<>();
+    private CtField<Integer> lastInitField;
     
     public StageModel(CompilationContext cxt, CtField<?> oneField,
                       CtClass<?> declaringType) {
@@ -108,6 +176,10 @@ public class StageModel extends DependencyNode {
                         throw sgce(name + " fields cannot span several class declarations");
                     fieldsFoundInThisClass = true;
                     fields.put(field, null);
+                    if (field.getAnnotation(GroupedWith.class) != null) {
+                        declaredGroupedWith = field.getAnnotation(field.getFactory().Type()
+                                .createReference(GroupedWith.class)).getElementValue("value");
+                    }
                     if (field.getDefaultExpression() != null) {
                         if (initField != null || manyFieldsInitialized) {
                             if (stageInitMethod == null || stageInitMethod.hasModifier(ABSTRACT)) {
@@ -159,13 +231,13 @@ public class StageModel extends DependencyNode {
             throw sgce("If no field initialized, " + closeMethodName() + "() should be declared");
     }
     
-    private static String stageName(CtField<?> field) {
+    static String stageName(CtField<?> field) {
         if (field.getAnnotation(Stage.class) != null)
             return getStageName(field);
         return capitalize(field.getSimpleName());
     }
 
-    private static String getStageName(CtElement element) {
+    static String getStageName(CtElement element) {
         return element.getAnnotation(element.getFactory().Type().createReference(Stage.class))
                 .getElementValue("value");
     }
@@ -184,6 +256,13 @@ public class StageModel extends DependencyNode {
             stageInitMethod.removeModifier(ABSTRACT);
         }
         
+        if (initStatePacked()) {
+            CtReturn<Boolean> ret = f().Core().createReturn();
+            ret.setReturnedExpression(initBitTest());
+            stageInitMethod.getBody().addStatement(ret);
+            return stageInitMethod;
+        }
+
         CtExpression<?> unInitExpression = initField.getDefaultExpression();
         
         CtTypeReference<?> initFieldType = initField.getType();
@@ -200,6 +279,17 @@ public class StageModel extends DependencyNode {
             return stageInitMethod;
         }
 
+        if (isNaN(unInitExpression)) {
+            // NaN != NaN, so the field is init if it is equal to itself
+            CtReturn<Object> ret = f().Core().createReturn();
+            ret.setReturnedExpression(f().Code().createBinaryOperator(
+                    f().Code().createVariableRead(initField.getReference(), false),
+                    f().Code().createVariableRead(initField.getReference(), false),
+                    BinaryOperatorKind.EQ));
+            stageInitMethod.getBody().addStatement(ret);
+            return stageInitMethod;
+        }
+
         CtReturn<Object> ret = f().Core().createReturn();
         ret.setReturnedExpression(f().Code().createBinaryOperator(
                 f().Code().createVariableRead(initField.getReference(), false),
@@ -209,6 +299,324 @@ public class StageModel extends DependencyNode {
         return stageInitMethod;
     }
 
+    /**
+     * Only stages with a distinguished init field could be tracked in packed init state
+     * words, because a user-defined stageInit() might have arbitrary logic. Stage methods
+     * might assign the init field (e. g. the uninit value, to close the stage), which wouldn't
+     * update the packed bit, so such stages are not packed, unless the init field is
+     * specialized, i. e. any value keeps the stage init.
+     */
+    boolean canPackInitState() {
+        return initField != null && !alwaysInit &&
+                (initFieldSpecialized() || !initFieldAssignedInStageMethods());
+    }
+
+    private boolean initFieldAssignedInStageMethods() {
+        return stageMethods.keySet().stream().anyMatch(m -> !m.getElements(
+                (CtFieldAccess<?> access) -> access.getVariable().getDeclaration() == initField &&
+                        assigned(access)).isEmpty());
+    }
+
+    private static boolean assigned(CtFieldAccess<?> access) {
+        CtElement parent = access.getParent();
+        if (parent instanceof CtAssignment)
+            return ((CtAssignment<?, ?>) parent).getAssigned() == access;
+        if (parent instanceof CtUnaryOperator) {
+            UnaryOperatorKind kind = ((CtUnaryOperator<?>) parent).getKind();
+            return kind == UnaryOperatorKind.PREINC || kind == UnaryOperatorKind.PREDEC ||
+                    kind == UnaryOperatorKind.POSTINC || kind == UnaryOperatorKind.POSTDEC;
+        }
+        return false;
+    }
+
+    /**
+     * If the uninit value of the init field is specialized, and the init state should be
+     * packed, because any value of the field is valid.
+     */
+    boolean initFieldSpecialized() {
+        return initField != null && cxt.isSpecializedUninit(initField);
+    }
+
+    private static boolean isNaN(CtExpression<?> expression) {
+        if (expression instanceof CtLiteral) {
+            Object value = ((CtLiteral<?>) expression).getValue();
+            return (value instanceof Double && ((Double) value).isNaN()) ||
+                    (value instanceof Float && ((Float) value).isNaN());
+        }
+        if (expression instanceof CtFieldRead) {
+            CtFieldReference<?> field = ((CtFieldRead<?>) expression).getVariable();
+            CtTypeReference<?> declaringType = field.getDeclaringType();
+            return field.getSimpleName().equals("NaN") && declaringType != null &&
+                    (declaringType.getQualifiedName().equals(Double.class.getName()) ||
+                            declaringType.getQualifiedName().equals(Float.class.getName()));
+        }
+        return false;
+    }
+
+    /**
+     * If this stage could be always init, i. e. it has a single no-arg init method, and
+     * generated stage init and close methods.
+     */
+    boolean canBeAlwaysInit() {
+        return initField != null && closeMethodGenerated && initStageMethods.size() == 1 &&
+                noArgInitStageMethod != null;
+    }
+
+    CtMethod<Void> getNoArgInitStageMethod() {
+        return noArgInitStageMethod;
+    }
+
+    List<CtMethod<Void>> getInitStageMethods() {
+        return initStageMethods;
+    }
+
+    Set<CtMethod<?>> getStageMethods() {
+        return stageMethods.keySet();
+    }
+
+    /**
+     * If stage methods of this stage are called only when the stage is init, i. e. not from
+     * init methods and the declared close method of this stage. Calls from other nodes are
+     * guarded.
+     */
+    boolean stageMethodsCalledOnlyWhenInit() {
+        List<CtMethod<?>> lifecycleMethods = new ArrayList<>(initStageMethods);
+        if (closeMethod != null && !closeMethod.hasModifier(ABSTRACT))
+            lifecycleMethods.add(closeMethod);
+        return lifecycleMethods.stream().allMatch(m -> m.getElements((CtInvocation<?> inv) -> {
+            if (inv.getExecutable().getDeclaringType() == null)
+                return false;
+            CtExecutable<?> declaration = inv.getExecutable().getDeclaration();
+            return declaration instanceof CtMethod &&
+                    cxt.getStageModelByStageMethod((CtMethod<?>) declaration) == this;
+        }).isEmpty());
+    }
+
+    boolean closeMethodDeclared() {
+        return closeMethod != null && !closeMethod.hasModifier(ABSTRACT) &&
+                !closeMethodGenerated;
+    }
+
+    String getDeclaredGroupedWith() {
+        return declaredGroupedWith;
+    }
+
+    /**
+     * If some fields of this stage are accessed via abstract methods or interface methods,
+     * implemented by generated access methods.
+     */
+    boolean implementsAccessMethods() {
+        return !fieldsToGenerateAccessMethods.isEmpty();
+    }
+
+    /**
+     * Methods of this stage, declared in the staged classes.
+     */
+    List<CtMethod<?>> declaredMethods() {
+        List<CtMethod<?>> methods = new ArrayList<>(initStageMethods);
+        methods.addAll(stageMethods.keySet());
+        if (stageInitMethod != null)
+            methods.add(stageInitMethod);
+        if (closeMethod != null && !closeMethodGenerated)
+            methods.add(closeMethod);
+        return methods;
+    }
+
+    /**
+     * Fields of this stage and methods of this stage, declared or generated so far.
+     */
+    List<CtTypeMember> members() {
+        List<CtTypeMember> members = new ArrayList<>(fields.keySet());
+        fields.values().stream().filter(Objects::nonNull).forEach(members::add);
+        members.addAll(declaredMethods());
+        if (closeMethodGenerated)
+            members.add(closeMethod);
+        if (doCloseMethod != null)
+            members.add(doCloseMethod);
+        return members;
+    }
+
+    /**
+     * The given stage is init only by init methods of this stage, and is closed together with
+     * this stage, along with the stages grouped with it.
+     */
+    void group(StageModel stage) {
+        groupedStages.add(stage);
+        stage.groupedWith = this;
+    }
+
+    private void addGroupedStagesDeep(List<StageModel> stages) {
+        for (StageModel stage : groupedStages) {
+            stages.add(stage);
+            stage.addGroupedStagesDeep(stages);
+        }
+    }
+
+    /**
+     * doClose() doesn't close dependants, if the only dependant of a grouped stage is the stage
+     * it is grouped with, which is already closed. Other dependants of a stage, declared {@link
+     * GroupedWith} the closed stage, are closed after doClose(), when the grouped stage is
+     * already not init, so that closing the stage it is grouped with again doesn't recurse.
+     */
+    private CtStatement closeGrouped() {
+        CtIf ifInit = f().Core().createIf();
+        ifInit.setCondition(createStageInitCheck());
+        CtInvocation<Void> doClose = f().Code().createInvocation(thisAccess(),
+                getDoCloseMethod().getReference());
+        Optional<CtMethod<Void>> closeDependants = getDependants().stream()
+                .anyMatch(d -> d != groupedWith && d.getCloseMethod().isPresent()) ?
+                getCloseDependantsMethod() : empty();
+        if (closeDependants.isPresent()) {
+            CtBlock<Void> block = f().Core().createBlock();
+            block.addStatement(doClose);
+            block.addStatement(f().Code().createInvocation(thisAccess(),
+                    closeDependants.get().getReference()));
+            ifInit.setThenStatement(block);
+        } else {
+            ifInit.setThenStatement(doClose);
+        }
+        return ifInit;
+    }
+
+    /**
+     * This stage is init in constructors and never closed or re-init, except by the global
+     * close, so it is accessed without guards, and doesn't have init state check and close
+     * methods.
+     */
+    void markAlwaysInit() {
+        assert canBeAlwaysInit();
+        alwaysInit = true;
+        // generated while dependencies are linked
+        declaringType.removeMethod(closeMethod);
+        if (doCloseMethod != null)
+            declaringType.removeMethod(doCloseMethod);
+    }
+
+    boolean alwaysInit() {
+        return alwaysInit;
+    }
+
+    void assignInitBit(int initBitIndex) {
+        assert canPackInitState() && this.initBitIndex < 0;
+        this.initBitIndex = initBitIndex;
+    }
+
+    boolean initStatePacked() {
+        return initBitIndex >= 0;
+    }
+
+    int initBitIndex() {
+        return initBitIndex;
+    }
+
+    String initBitsWord() {
+        return CompilationNode.initBitsWordName(initBitIndex);
+    }
+
+    private String initBitMask() {
+        return bitMask(initBitIndex);
+    }
+
+    static String bitMask(int bitIndex) {
+        return "0x" + Long.toHexString(1L << (bitIndex & 63)) + "L";
+    }
+
+    private CtExpression<Boolean> initBitTest() {
+        return f().Code().createCodeSnippetExpression(
+                "((" + initBitsWord() + " & " + initBitMask() + ") != 0)");
+    }
+
+    private CtStatement setInitBit() {
+        return f().Code().createCodeSnippetStatement(initBitsWord() + " |= " + initBitMask());
+    }
+
+    private CtStatement clearInitBit() {
+        return f().Code().createCodeSnippetStatement(initBitsWord() + " &= ~" + initBitMask());
+    }
+
+    void assignCloseBit(int closeBitIndex) {
+        assert this.closeBitIndex < 0;
+        this.closeBitIndex = closeBitIndex;
+    }
+
+    private CtStatement setCloseBit() {
+        return f().Code().createCodeSnippetStatement(
+                Compiler.stagesToCloseWordName(closeBitIndex) + " |= " + bitMask(closeBitIndex));
+    }
+
+    private CtStatement clearCloseBit() {
+        return f().Code().createCodeSnippetStatement(
+                Compiler.stagesToCloseWordName(closeBitIndex) + " &= ~" + bitMask(closeBitIndex));
+    }
+
+    /**
+     * Inserts statements, produced by the given supplier, before each return from the method
+     * and in the end of the method body.
+     */
+    private static void insertBeforeExits(CtMethod<?> method, Supplier<CtStatement> statement) {
+        List<CtReturn<?>> returns = method.getBody().getElements((CtReturn<?> r) ->
+                r.getParent(CtExecutable.class) == method);
+        returns.forEach(r -> r.insertBefore(statement.get()));
+        List<CtStatement> statements = method.getBody().getStatements();
+        if (statements.isEmpty() || !(statements.get(statements.size() - 1) instanceof CtReturn))
+            method.getBody().insertEnd(statement.get());
+    }
+
+    private void insertEpilogueBeforeExits(
+            CtMethod<Void> initMethod, Supplier<CtStatement> statement) {
+        insertBeforeExits(initMethod, () -> {
+            CtStatement epilogueStatement = statement.get();
+            initEpilogueStatements.add(epilogueStatement);
+            return epilogueStatement;
+        });
+    }
+
+    /**
+     * If an init method is estimated to exceed {@link MethodSizes#HUGE_METHOD_LIMIT}, moves
+     * the generated statements, repeated before each exit of the method, to a single private
+     * {@code initXEpilogue()} method. User-written init logic is left in place, because
+     * it could use locals and return from the middle of the method.
+     */
+    void outlineHugeInitMethods() {
+        if (initEpilogueStatements.isEmpty())
+            return;
+        initStageMethods.forEach(initStageMethod -> {
+            if (MethodSizes.estimate(initStageMethod.getBody()) <= MethodSizes.HUGE_METHOD_LIMIT)
+                return;
+            List<List<CtStatement>> epilogues = new ArrayList<>();
+            initStageMethod.getBody().getElements((CtBlock<?> block) -> true).forEach(block -> {
+                List<CtStatement> epilogue = new ArrayList<>();
+                for (CtStatement statement : block.getStatements()) {
+                    if (initEpilogueStatements.contains(statement)) {
+                        epilogue.add(statement);
+                    } else if (!epilogue.isEmpty()) {
+                        epilogues.add(epilogue);
+                        epilogue = new ArrayList<>();
+                    }
+                }
+                if (!epilogue.isEmpty())
+                    epilogues.add(epilogue);
+            });
+            if (epilogues.isEmpty())
+                return;
+            CtMethod<Void> epilogueMethod = f().Method().create(declaringType,
+                    EnumSet.of(ModifierKind.PRIVATE), f().Type().VOID_PRIMITIVE,
+                    initStageMethod.getSimpleName() + "Epilogue", Collections.emptyList(),
+                    Collections.emptySet(), f().Core().createBlock());
+            epilogues.get(0).forEach(statement ->
+                    epilogueMethod.getBody().addStatement(f().Core().clone(statement)));
+            epilogueMethod.getBody().setParent(epilogueMethod);
+            for (List<CtStatement> epilogue : epilogues) {
+                if (epilogue.size() != epilogues.get(0).size())
+                    throw new AssertionError();
+                epilogue.get(0).insertBefore(f().Code().createInvocation(thisAccess(),
+                        epilogueMethod.getReference()));
+                epilogue.forEach(statement ->
+                        ((CtBlock<?>) statement.getParent()).removeStatement(statement));
+            }
+        });
+    }
+
     private String stageInitMethodName() {
         return lowercase(name) + "Init";
     }
@@ -223,6 +631,8 @@ public class StageModel extends DependencyNode {
 
     @Override
     public Optional<CtMethod<Void>> getCloseMethod() {
+        if (alwaysInit)
+            return empty();
         if (closeMethod != null && !closeMethod.hasModifier(ABSTRACT)) {
             initCloseMethodStatements();
             return of(closeMethod);
@@ -249,11 +659,19 @@ public class StageModel extends DependencyNode {
         closeMethodStatements = f().Core().clone(closeMethod.getBody()).getStatements();
     }
 
+    @Override
+    public Optional<CtMethod<Void>> getCloseWithoutDependantsMethod() {
+        if (alwaysInit)
+            return empty();
+        return of(getDoCloseMethod());
+    }
+
     public CtMethod<Void> getDoCloseMethod() {
         if (doCloseMethod != null)
             return doCloseMethod;
         getCloseMethod(); // ensure closeMethodStatements list is init
         doCloseMethod = createSimpleMethod(f().Type().VOID_PRIMITIVE, "doClose" + name);
+        cxt.bindDoClose(doCloseMethod, this);
         for (CtStatement statement : closeMethodStatements) {
             doCloseMethod.getBody().addStatement(statement);
         }
@@ -288,20 +706,471 @@ public class StageModel extends DependencyNode {
         });
     }
 
+    void outlineSlowInitPath() {
+        outlineSlowInitPath = true;
+    }
+
+    void shortCircuitSameArgumentInits() {
+        shortCircuitSameArgumentInits = true;
+    }
+
+    /**
+     * Parameterized init methods return straight away, without running the body and closing
+     * dependants, if the stage is ready and was init by the same method with equal arguments
+     * (primitives are compared bitwise, objects with {@code equals()}). Methods with array
+     * parameters are not short-circuited, because arrays could be mutated in place.
+     */
+    private void shortCircuitSameArgumentInitMethods() {
+        List<CtMethod<Void>> parameterized = initStageMethods.stream()
+                .filter(m -> !m.getParameters().isEmpty())
+                .filter(m -> m.getParameters().stream()
+                        .noneMatch(p -> p.getType() instanceof CtArrayTypeReference))
+                .collect(toList());
+        if (parameterized.isEmpty())
+            return;
+        if (initStageMethods.size() > 1) {
+            lastInitField = f().Field().create(declaringType, EnumSet.noneOf(ModifierKind.class),
+                    f().Type().INTEGER_PRIMITIVE, lowercase(name) + "LastInit");
+            for (int i = 0; i < initStageMethods.size(); i++) {
+                String recordLastInit = "this." + lastInitField.getSimpleName() + " = " + (i + 1);
+                insertBeforeExits(initStageMethods.get(i),
+                        () -> f().Code().createCodeSnippetStatement(recordLastInit));
+            }
+        }
+        for (CtMethod<Void> initMethod : parameterized) {
+            List<String> sameArguments = new ArrayList<>();
+            CtMethod<Boolean> readyCheck =
+                    refreshesLazily() ? getFreshMethod() : getStageInitMethod();
+            sameArguments.add("this." + readyCheck.getSimpleName() + "()");
+            if (lastInitField != null) {
+                sameArguments.add("this." + lastInitField.getSimpleName() + " == " +
+                        (initStageMethods.indexOf(initMethod) + 1));
+            }
+            for (CtParameter<?> parameter : initMethod.getParameters()) {
+                CtField<?> argField = f().Field().create(declaringType,
+                        EnumSet.noneOf(ModifierKind.class), f().Core().clone(parameter.getType()),
+                        initMethod.getSimpleName() + "Arg" +
+                                capitalize(parameter.getSimpleName()));
+                initArgFields.add(argField);
+                String arg = parameter.getSimpleName();
+                String lastArg = "this." + argField.getSimpleName();
+                sameArguments.add(equalsExpression(parameter.getType(), lastArg, arg));
+                insertBeforeExits(initMethod, () ->
+                        f().Code().createCodeSnippetStatement(lastArg + " = " + arg));
+            }
+            initMethod.getBody().insertBegin(f().Code().createCodeSnippetStatement(
+                    "if (" + String.join(" && ", sameArguments) + ") return"));
+        }
+    }
+
+    private static String equalsExpression(CtTypeReference<?> type, String a, String b) {
+        switch (type.getQualifiedName()) {
+            case "double":
+                return "java.lang.Double.doubleToLongBits(" + a + ") == " +
+                        "java.lang.Double.doubleToLongBits(" + b + ")";
+            case "float":
+                return "java.lang.Float.floatToIntBits(" + a + ") == " +
+                        "java.lang.Float.floatToIntBits(" + b + ")";
+            default:
+                return type.isPrimitive() ? a + " == " + b :
+                        "java.util.Objects.equals(" + a + ", " + b + ")";
+        }
+    }
+
+    void instrument(boolean initEvents) {
+        counterFields = StageInstrumentation.COUNTERS.stream()
+                .map(counter -> f().Field().create(declaringType,
+                        EnumSet.noneOf(ModifierKind.class), f().Type().LONG_PRIMITIVE,
+                        lowercase(name) + counter))
+                .collect(toList());
+        this.initEvents = initEvents;
+    }
+
+    boolean instrumented() {
+        return counterFields != null;
+    }
+
+    List<CtField<Long>> getCounterFields() {
+        return counterFields;
+    }
+
+    private CtStatement count(int counter) {
+        return f().Code().createCodeSnippetStatement("if (" +
+                StageInstrumentation.STATS_SWITCH + ") this." +
+                counterFields.get(counter).getSimpleName() + "++");
+    }
+
+    private void instrumentInitAndClose() {
+        String initStart = lowercase(name) + "InitStart";
+        initStageMethods.forEach(initStageMethod -> {
+            if (initEvents) {
+                insertBeforeExits(initStageMethod, () -> f().Code().createCodeSnippetStatement(
+                        "if (" + StageInstrumentation.EVENTS_SWITCH + ") " +
+                                StageInstrumentation.EVENT_CLASS + ".commitIfSlow(\"" +
+                                qualifiedName() + "\", " + initStart + ")"));
+                initStageMethod.getBody().insertBegin(f().Code().createCodeSnippetStatement(
+                        "long " + initStart + " = " + StageInstrumentation.EVENTS_SWITCH +
+                                " ? java.lang.System.nanoTime() : 0L"));
+            }
+            initStageMethod.getBody().insertBegin(count(StageInstrumentation.INITS));
+        });
+        String countClose = "this." +
+                counterFields.get(StageInstrumentation.CLOSES).getSimpleName() + "++";
+        closeMethods().forEach(m -> m.getBody().insertBegin(
+                ifSwitchOnAndInit(StageInstrumentation.STATS_SWITCH, countClose)));
+        getCloseDependantsMethod().ifPresent(m ->
+                m.getBody().insertBegin(count(StageInstrumentation.CASCADE_CLOSES)));
+    }
+
+    /**
+     * The close method, and doClose(), which closes the stage in flattened close cascades,
+     * group closes and the global close.
+     */
+    private Stream<CtMethod<Void>> closeMethods() {
+        return Stream.of(getCloseMethod().get(), getDoCloseMethod());
+    }
+
+    /**
+     * {@code if (SWITCH && stageInit()) statement;}, so that closes of a not init stage are
+     * not counted or traced.
+     */
+    private CtIf ifSwitchOnAndInit(String switchName, String statement) {
+        CtIf ctIf = f().Core().createIf();
+        ctIf.setCondition(f().Code().createBinaryOperator(
+                f().Code().createCodeSnippetExpression(switchName),
+                createStageInitCheck(), BinaryOperatorKind.AND));
+        ctIf.setThenStatement(f().Code().createCodeSnippetStatement(statement));
+        return ctIf;
+    }
+
+    void trace(int traceId) {
+        this.traceId = traceId;
+    }
+
+    private String traceStatement(int event) {
+        return StageInstrumentation.TRACE_METHOD + "(" + traceId + ", " + event + ")";
+    }
+
+    private void instrumentTracing() {
+        String traceInit = "if (" + StageInstrumentation.TRACE_SWITCH + ") " +
+                traceStatement(StageInstrumentation.TRACE_INIT);
+        initStageMethods.forEach(initStageMethod -> initStageMethod.getBody().insertBegin(
+                f().Code().createCodeSnippetStatement(traceInit)));
+        closeMethods().forEach(m -> m.getBody().insertBegin(ifSwitchOnAndInit(
+                StageInstrumentation.TRACE_SWITCH,
+                traceStatement(StageInstrumentation.TRACE_CLOSE))));
+        getCloseDependantsMethod().ifPresent(m -> m.getBody().insertBegin(
+                f().Code().createCodeSnippetStatement("if (" +
+                        StageInstrumentation.TRACE_SWITCH + ") " +
+                        traceStatement(StageInstrumentation.TRACE_CASCADE_CLOSE))));
+    }
+
+    /**
+     * Time each {@code sampleRate}-th init of this stage into a per-context histogram.
+     */
+    void sampleInitLatencies(int sampleRate) {
+        initSampleRate = sampleRate;
+        String prefix = lowercase(name);
+        initLatenciesField = f().Field().create(declaringType,
+                EnumSet.noneOf(ModifierKind.class),
+                (CtTypeReference) f().Type().createArrayReference(f().Type().LONG_PRIMITIVE),
+                prefix + "InitLatencies");
+        initLatenciesField.setDefaultExpression(f().Code().createCodeSnippetExpression(
+                StageInstrumentation.LATENCIES_SWITCH + " ? new long[" +
+                        StageInstrumentation.LATENCY_BUCKETS + "] : null"));
+        initSampleTickField = f().Field().create(declaringType,
+                EnumSet.noneOf(ModifierKind.class), f().Type().INTEGER_PRIMITIVE,
+                prefix + "InitSampleTick");
+    }
+
+    CtField<long[]> getInitLatenciesField() {
+        return initLatenciesField;
+    }
+
+    private void instrumentInitLatencies() {
+        String sampleStart = lowercase(name) + "InitSampleStart";
+        initStageMethods.forEach(initStageMethod -> {
+            insertBeforeExits(initStageMethod, () -> f().Code().createCodeSnippetStatement(
+                    "if (" + sampleStart + " != 0L) this." +
+                            initLatenciesField.getSimpleName() + "[" +
+                            StageInstrumentation.LATENCY_BUCKET_METHOD +
+                            "(java.lang.System.nanoTime() - " + sampleStart + ")]++"));
+            initStageMethod.getBody().insertBegin(f().Code().createCodeSnippetStatement(
+                    "long " + sampleStart + " = " + StageInstrumentation.LATENCIES_SWITCH +
+                            " && ((++this." + initSampleTickField.getSimpleName() + ") & " +
+                            (initSampleRate - 1) + ") == 0 ? java.lang.System.nanoTime() : 0L"));
+        });
+    }
+
+    String qualifiedName() {
+        return declaringType.getSimpleName() + "." + name;
+    }
+
+    /**
+     * Single method, shared by all accessors and guarded stage methods of this stage, which
+     * counts the slow guard, if the stage is instrumented, and calls the no-arg init method.
+     * The whole uninit path of a guard is then a single call, and the init method is not copied,
+     * so it is neither inlined into each accessor, nor doubles in bytecode.
+     */
+    private CtMethod<Void> getSlowInitMethod() {
+        if (slowInitMethod != null)
+            return slowInitMethod;
+        slowInitMethod = createSimpleMethod(f().Type().VOID_PRIMITIVE, "slowInit" + name);
+        cxt.bindSlowInit(slowInitMethod, this);
+        if (instrumented())
+            slowInitMethod.getBody().addStatement(count(StageInstrumentation.SLOW_GUARDS));
+        slowInitMethod.getBody().addStatement(f().Code().createInvocation(thisAccess(),
+                noArgInitStageMethod.getReference()));
+        return slowInitMethod;
+    }
+
+    void enableLazyInvalidation(CompilationNode epochNode, CtField<Long> stageEpochField) {
+        this.epochNode = epochNode;
+        this.stageEpochField = stageEpochField;
+    }
+
+    private boolean lazyInvalidation() {
+        return stageEpochField != null;
+    }
+
+    private CtFieldAccess<Long> stageEpochRead() {
+        return fieldRead(nodeAccess(epochNode), stageEpochField);
+    }
+
+    private CtUnaryOperator<Long> incrementStageEpoch() {
+        CtFieldAccess<Long> stageEpochWrite = f().Core().createFieldWrite();
+        stageEpochWrite.setVariable(stageEpochField.getReference());
+        stageEpochWrite.setType(stageEpochField.getType());
+        stageEpochWrite.setTarget(nodeAccess(epochNode));
+        CtUnaryOperator<Long> increment = f().Core().createUnaryOperator();
+        increment.setKind(UnaryOperatorKind.POSTINC);
+        increment.setOperand(stageEpochWrite);
+        return increment;
+    }
+
+    /**
+     * Stages with init methods, which are reached from this stage's dependencies directly or via
+     * method nodes. Stages without init methods couldn't be re-init, only closed, always init
+     * stages are never re-init.
+     */
+    private Set<StageModel> stageDependencies() {
+        Set<StageModel> stageDependencies = new LinkedHashSet<>();
+        Deque<DependencyNode> toVisit = new ArrayDeque<>(getDependencies());
+        Set<DependencyNode> visited = new HashSet<>();
+        DependencyNode node;
+        while ((node = toVisit.poll()) != null) {
+            if (!visited.add(node))
+                continue;
+            if (node instanceof StageModel) {
+                StageModel stage = (StageModel) node;
+                if (!stage.initStageMethods.isEmpty() && !stage.alwaysInit)
+                    stageDependencies.add(stage);
+            } else {
+                toVisit.addAll(node.getDependencies());
+            }
+        }
+        return stageDependencies;
+    }
+
+    /**
+     * Stages which depend on this stage directly or via method nodes.
+     */
+    private Set<StageModel> stageDependants() {
+        Set<StageModel> stageDependants = new LinkedHashSet<>();
+        Deque<DependencyNode> toVisit = new ArrayDeque<>(getDependants());
+        Set<DependencyNode> visited = new HashSet<>();
+        DependencyNode node;
+        while ((node = toVisit.poll()) != null) {
+            if (!visited.add(node))
+                continue;
+            if (node instanceof StageModel) {
+                stageDependants.add((StageModel) node);
+            } else {
+                toVisit.addAll(node.getDependants());
+            }
+        }
+        return stageDependants;
+    }
+
+    /**
+     * If this stage could detect that some of its stage dependencies were re-init since this
+     * stage's own init, and re-init itself in guards.
+     */
+    boolean refreshesLazily() {
+        return lazyInvalidation() && noArgInitStageMethod != null &&
+                !stageDependencies().isEmpty();
+    }
+
+    /**
+     * If re-init of this stage, when it is already init, could just bump the epoch instead of
+     * closing all dependants, because all of them refresh lazily.
+     */
+    private boolean reInitsLazily() {
+        Set<StageModel> stageDependants = stageDependants();
+        return lazyInvalidation() && !stageDependants.isEmpty() &&
+                stageDependants.stream().allMatch(StageModel::refreshesLazily);
+    }
+
+    private boolean versioned() {
+        return stageDependants().stream().anyMatch(StageModel::refreshesLazily);
+    }
+
+    private CtField<Integer> getVersionField() {
+        if (versionField == null) {
+            versionField = f().Field().create(declaringType, EnumSet.noneOf(ModifierKind.class),
+                    f().Type().INTEGER_PRIMITIVE, lowercase(name) + "Version");
+        }
+        return versionField;
+    }
+
+    private CtExpression<?> nodeAccess(StageModel other) {
+        return nodeAccess(cxt.getCompilationNode(other.declaringType));
+    }
+
+    private CtExpression<?> nodeAccess(CompilationNode node) {
+        return cxt.getCompilationNode(declaringType).access(node, AccessType.Read);
+    }
+
+    private <T> CtFieldAccess<T> fieldRead(CtExpression<?> target, CtField<T> field) {
+        CtFieldAccess<T> read = f().Core().createFieldRead();
+        read.setVariable(field.getReference());
+        read.setType(field.getType());
+        read.setTarget(target);
+        return read;
+    }
+
+    private CtMethod<Boolean> getFreshMethod() {
+        if (freshMethod != null)
+            return freshMethod;
+        freshMethod = createSimpleMethod(f().Type().BOOLEAN_PRIMITIVE, lowercase(name) + "Fresh");
+        validEpochField = f().Field().create(declaringType, EnumSet.noneOf(ModifierKind.class),
+                f().Type().LONG_PRIMITIVE, lowercase(name) + "ValidEpoch");
+        CtBlock<Boolean> body = freshMethod.getBody();
+        CtIf notInit = createNotInitIf();
+        notInit.setThenStatement(returnLiteral(false));
+        body.addStatement(notInit);
+        CtIf validInThisEpoch = f().Core().createIf();
+        validInThisEpoch.setCondition(f().Code().createBinaryOperator(
+                fieldRead(thisAccess(), validEpochField), stageEpochRead(),
+                BinaryOperatorKind.EQ));
+        validInThisEpoch.setThenStatement(returnLiteral(true));
+        body.addStatement(validInThisEpoch);
+        for (StageModel dependency : stageDependencies()) {
+            CtField<Integer> dependencyVersionField = f().Field().create(declaringType,
+                    EnumSet.noneOf(ModifierKind.class), f().Type().INTEGER_PRIMITIVE,
+                    lowercase(name) + dependency.name + "Version");
+            dependencyVersionFields.put(dependency, dependencyVersionField);
+            CtIf versionChanged = f().Core().createIf();
+            versionChanged.setCondition(f().Code().createBinaryOperator(
+                    fieldRead(thisAccess(), dependencyVersionField),
+                    fieldRead(nodeAccess(dependency), dependency.getVersionField()),
+                    BinaryOperatorKind.NE));
+            versionChanged.setThenStatement(returnLiteral(false));
+            body.addStatement(versionChanged);
+            if (dependency.refreshesLazily()) {
+                CtIf dependencyStale = f().Core().createIf();
+                CtUnaryOperator<Boolean> notFresh = f().Core().createUnaryOperator();
+                notFresh.setKind(NOT);
+                notFresh.setOperand(f().Code().createInvocation(nodeAccess(dependency),
+                        dependency.getFreshMethod().getReference()));
+                dependencyStale.setCondition(notFresh);
+                dependencyStale.setThenStatement(returnLiteral(false));
+                body.addStatement(dependencyStale);
+            }
+        }
+        body.addStatement(stampValidEpoch());
+        body.addStatement(returnLiteral(true));
+        return freshMethod;
+    }
+
+    private CtStatement stampValidEpoch() {
+        return f().Code().createVariableAssignment(
+                validEpochField.getReference(), false, stageEpochRead());
+    }
+
+    private CtReturn<Boolean> returnLiteral(boolean value) {
+        CtReturn<Boolean> ret = f().Core().createReturn();
+        ret.setReturnedExpression(f().Code().createLiteral(value));
+        return ret;
+    }
+
+    /**
+     * Re-init this stage. The stale stage is closed first, so that its close logic runs. If
+     * dependants refresh lazily themselves, they are not closed, they detect the re-init by the
+     * version of this stage, otherwise the stage is closed with all dependants.
+     */
+    private CtMethod<Void> getRefreshMethod() {
+        if (refreshMethod != null)
+            return refreshMethod;
+        refreshMethod = createSimpleMethod(f().Type().VOID_PRIMITIVE, "refresh" + name);
+        CtMethod<Void> close = reInitsLazily() ? getDoCloseMethod() : getCloseMethod().get();
+        CtIf ifInit = f().Core().createIf();
+        ifInit.setCondition(createStageInitCheck());
+        ifInit.setThenStatement(f().Code().createInvocation(thisAccess(), close.getReference()));
+        refreshMethod.getBody().addStatement(ifInit);
+        refreshMethod.getBody().addStatement(f().Code().createInvocation(
+                thisAccess(), noArgInitStageMethod.getReference()));
+        return refreshMethod;
+    }
+
+    private void stampVersions(CtMethod<Void> initStageMethod) {
+        if (versioned()) {
+            insertEpilogueBeforeExits(initStageMethod, () -> f().Code().createCodeSnippetStatement(
+                    "this." + getVersionField().getSimpleName() + "++"));
+        }
+        if (refreshesLazily()) {
+            getFreshMethod();
+            dependencyVersionFields.forEach((dependency, dependencyVersionField) ->
+                    insertEpilogueBeforeExits(initStageMethod, () -> {
+                        CtFieldAccess<Integer> versionRead =
+                                fieldRead(nodeAccess(dependency), dependency.getVersionField());
+                        return f().Code().createVariableAssignment(
+                                dependencyVersionField.getReference(), false, versionRead);
+                    }));
+            insertEpilogueBeforeExits(initStageMethod, this::stampValidEpoch);
+        }
+    }
+
     private <T> void addGuardingPrologue(CtMethod<T> proxy) {
-        if (noArgInitStageMethod != null) {
+        if (alwaysInit) {
+            return;
+        } else if (refreshesLazily()) {
+            CtIf ctIf = f().Core().createIf();
+            CtUnaryOperator<Boolean> notFresh = f().Core().createUnaryOperator();
+            notFresh.setKind(NOT);
+            notFresh.setOperand(f().Code().createInvocation(thisAccess(),
+                    getFreshMethod().getReference()));
+            ctIf.setCondition(notFresh);
+            ctIf.setThenStatement(slowGuardPath(f().Code().createInvocation(thisAccess(),
+                    getRefreshMethod().getReference())));
+            proxy.getBody().addStatement(ctIf);
+        } else if (noArgInitStageMethod != null) {
             CtIf ctIf = createNotInitIf();
-            ctIf.setThenStatement(f().Code().createInvocation(thisAccess(),
-                    noArgInitStageMethod.getReference()));
+            if (outlineSlowInitPath) {
+                ctIf.setThenStatement(f().Code().createInvocation(thisAccess(),
+                        getSlowInitMethod().getReference()));
+            } else {
+                ctIf.setThenStatement(slowGuardPath(f().Code().createInvocation(thisAccess(),
+                        noArgInitStageMethod.getReference())));
+            }
             proxy.getBody().addStatement(ctIf);
         } else {
             CtAssert<String> ctAssert = f().Core().createAssert();
-            ctAssert.setAssertExpression(createStageInitInvocation());
+            ctAssert.setAssertExpression(createStageInitCheck());
             ctAssert.setExpression(f().Code().createLiteral(name + " should be init"));
             proxy.getBody().addStatement(ctAssert);
         }
     }
 
+    private CtStatement slowGuardPath(CtInvocation<Void> init) {
+        if (!instrumented())
+            return init;
+        CtBlock<Void> block = f().Core().createBlock();
+        block.addStatement(count(StageInstrumentation.SLOW_GUARDS));
+        block.addStatement(init);
+        return block;
+    }
+
     public <T> CtTargetedExpression<T, CtExpression<?>> guardedStageMethodCall(
             CtInvocation<T> invocation, CtMethod<T> stageMethod) {
         if (!stageMethods.containsKey(stageMethod))
@@ -326,10 +1195,21 @@ public class StageModel extends DependencyNode {
                 ctReturn.setReturnedExpression(innerInvocation);
                 guarded.getBody().addStatement(ctReturn);
             }
+            cxt.bindGuardedStageMethod(guarded, this);
             return guarded;
         }).getReference(), invocation.getArguments());
     }
 
+    CtField<?> getFieldByAccessMethod(CtMethod<?> accessMethod) {
+        return fields.entrySet().stream().filter(e -> e.getValue() == accessMethod)
+                .map(Map.Entry::getKey).findFirst().orElse(null);
+    }
+
+    CtMethod<?> getStageMethodByGuarded(CtMethod<?> guardedStageMethod) {
+        return stageMethods.entrySet().stream().filter(e -> e.getValue() == guardedStageMethod)
+                .map(Map.Entry::getKey).findFirst().orElse(null);
+    }
+
     private CtThisAccess<?> thisAccess() {
         return f().Code().createThisAccess(declaringType.getReference());
     }
@@ -338,25 +1218,92 @@ public class StageModel extends DependencyNode {
         CtIf ctIf = f().Core().createIf();
         CtUnaryOperator<Boolean> negInit = f().Core().createUnaryOperator();
         negInit.setKind(NOT);
-        negInit.setOperand(createStageInitInvocation());
+        negInit.setOperand(createStageInitCheck());
         ctIf.setCondition(negInit);
         return ctIf;
     }
 
-    private CtInvocation<Boolean> createStageInitInvocation() {
+    private CtExpression<Boolean> createStageInitCheck() {
+        if (initStatePacked())
+            return initBitTest();
         return f().Code().createInvocation(thisAccess(), getStageInitMethod().getReference());
     }
 
+    /**
+     * Check that the stage is init (and fresh, if it refreshes lazily) and its fields could be
+     * accessed raw, from the code of the given compilation node.
+     */
+    CtExpression<Boolean> createReadyCheck(CompilationNode accessingNode) {
+        CtExpression<?> access = accessingNode.access(cxt.getCompilationNode(declaringType),
+                AccessType.Read);
+        CtMethod<Boolean> check = refreshesLazily() ? getFreshMethod() : getStageInitMethod();
+        return f().Code().createInvocation(access, check.getReference());
+    }
+
+    /**
+     * Copies the state of this stage from the same node of another context. Stage fields are
+     * copied as is, if the stage is init in the other context, so sentinel values keep their
+     * meaning. The version is copied regardless, because it is compared by dependants, which
+     * might be init in the other context.
+     */
+    void addStateCopy(CtBlock<?> body, Supplier<CtExpression<?>> thisNode,
+            Supplier<CtExpression<?>> otherNode) {
+        if (versionField != null)
+            body.addStatement(fieldCopy(thisNode.get(), otherNode.get(), versionField));
+        List<CtField<?>> stateFields = new ArrayList<>(fields.keySet());
+        if (validEpochField != null)
+            stateFields.add(validEpochField);
+        if (lastInitField != null)
+            stateFields.add(lastInitField);
+        stateFields.addAll(initArgFields);
+        stateFields.addAll(dependencyVersionFields.values());
+        if (stateFields.isEmpty())
+            return;
+        CtBlock<Void> copyFields = f().Core().createBlock();
+        stateFields.forEach(field ->
+                copyFields.addStatement(fieldCopy(thisNode.get(), otherNode.get(), field)));
+        CtIf ifInit = f().Core().createIf();
+        ifInit.setCondition(f().Code().createInvocation(otherNode.get(),
+                getStageInitMethod().getReference()));
+        ifInit.setThenStatement(copyFields);
+        body.addStatement(ifInit);
+    }
+
+    static <T> CtAssignment<T, T> fieldCopy(
+            CtExpression<?> thisNode, CtExpression<?> otherNode, CtField<T> field) {
+        Factory f = field.getFactory();
+        CtFieldWrite<T> write = f.Core().createFieldWrite();
+        write.setVariable(field.getReference());
+        write.setType(field.getType());
+        write.setTarget(thisNode);
+        CtFieldRead<T> read = f.Core().createFieldRead();
+        read.setVariable(field.getReference());
+        read.setType(field.getType());
+        read.setTarget(otherNode);
+        CtAssignment<T, T> assignment = f.Core().createAssignment();
+        assignment.setAssigned(write);
+        assignment.setAssignment(read);
+        assignment.setType(field.getType());
+        return assignment;
+    }
+
     @Override
     protected void doDeclareAndPrepareAllMethods() {
+        if (alwaysInit) {
+            fieldsToGenerateAccessMethods.forEach(this::fieldAccess);
+            return;
+        }
         getStageInitMethod();
         
         initStageMethods.forEach(initStageMethod -> {
             // rule 15
             CtBlock<Void> initStageMethodBody = initStageMethod.getBody();
+            if (initStatePacked())
+                insertEpilogueBeforeExits(initStageMethod, this::setInitBit);
+            if (closeBitIndex >= 0)
+                insertEpilogueBeforeExits(initStageMethod, this::setCloseBit);
             getCloseDependantsMethod().ifPresent(m -> {
-                CtInvocation<Boolean> stageInit = f().Code().createInvocation(
-                        thisAccess(), getStageInitMethod().getReference());
+                CtExpression<Boolean> stageInit = createStageInitCheck();
                 CtLocalVariable<Boolean> wasStageInit = f().Code().createLocalVariable(
                         f().Type().BOOLEAN_PRIMITIVE, "was" + name + "Init", stageInit);
                 initStageMethodBody.insertBegin(wasStageInit);
@@ -366,15 +1313,35 @@ public class StageModel extends DependencyNode {
 
                 CtIf ifInit = f().Core().createIf();
                 ifInit.setCondition(wasStageInitRead);
-                CtInvocation<Void> closeDependants =
-                        f().Code().createInvocation(thisAccess(), m.getReference());
-                ifInit.setThenStatement(closeDependants);
+                if (reInitsLazily()) {
+                    // dependants detect that this stage is re-init in their guards
+                    ifInit.setThenStatement(incrementStageEpoch());
+                } else {
+                    CtInvocation<Void> closeDependants =
+                            f().Code().createInvocation(thisAccess(), m.getReference());
+                    ifInit.setThenStatement(closeDependants);
+                }
 
                 initStageMethodBody.insertEnd(ifInit);
             });
+            if (lazyInvalidation())
+                stampVersions(initStageMethod);
         });
         
         CtMethod<Void> closeMethod = getCloseMethod().get();
+        if (initStatePacked()) {
+            insertBeforeExits(closeMethod, this::clearInitBit);
+            insertBeforeExits(getDoCloseMethod(), this::clearInitBit);
+        }
+        if (closeBitIndex >= 0) {
+            // a stage, closed individually or by a cascade, shouldn't be closed again by the
+            // global close or a rollback, if it is not init again by then
+            insertBeforeExits(closeMethod, this::clearCloseBit);
+            insertBeforeExits(getDoCloseMethod(), this::clearCloseBit);
+        }
+        List<StageModel> groupedStagesDeep = new ArrayList<>();
+        addGroupedStagesDeep(groupedStagesDeep);
+        groupedStagesDeep.forEach(stage -> insertBeforeExits(closeMethod, stage::closeGrouped));
         CtBlock<Void> closeMethodBody = closeMethod.getBody();
         getCloseDependantsMethod().ifPresent(m ->
                 closeMethodBody.insertBegin(
@@ -394,6 +1361,15 @@ public class StageModel extends DependencyNode {
             // getCloseDependantsMethod().isPresent() check.
             getDoCloseMethod().getBody().insertBegin(f().Core().clone(ctIf));
         }
+        if (instrumented())
+            instrumentInitAndClose();
+        if (initLatenciesField != null)
+            instrumentInitLatencies();
+        if (traceId >= 0)
+            instrumentTracing();
+        // the check goes first, short-circuited calls are not counted, sampled or traced
+        if (shortCircuitSameArgumentInits)
+            shortCircuitSameArgumentInitMethods();
         fieldsToGenerateAccessMethods.forEach(this::fieldAccess);
     }
 
@@ -401,7 +1377,7 @@ public class StageModel extends DependencyNode {
     public <E extends CtElement> List<E> filterBlocksForBuildingDeps(Filter<E> filter) {
         Stream<CtMethod<?>> depsBuildingMethods =
                 concat(initStageMethods.stream(), stageMethods.keySet().stream());
-        Stream<CtMethod<Void>> closeMethods =
+        Stream<CtMethod<Void>> closeMethods = alwaysInit ? Stream.empty() :
                 Stream.of(getCloseMethod().get(), getDoCloseMethod());
         depsBuildingMethods = concat(depsBuildingMethods, closeMethods);
         return depsBuildingMethods.flatMap(initMethod -> initMethod.getElements(filter).stream())
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static java.util.stream.Collectors.toList;
+import static net.openhft.sg.StageInstrumentation.*;
+
+/**
+ * Runtime statistics of stages, collected from a build with {@link Compiler#instrumentStages()}
+ * via the generated {@code stageCounters()} method, and used by {@link
+ * Compiler#useProfile(StageProfile)} to compile stages depending on how hot they are:
+ * <ul>
+ *     <li>slow init paths of cold stages, init less than {@link #COLD_FRACTION} times as often
+ *     as the hottest stage, are outlined;</li>
+ *     <li>entry methods, accessing a stage which is mostly init by guards (i. e. is usually not
+ *     init when an entry method is called), don't get fast paths;</li>
+ *     <li>within each size group, fields of stages which are init and accessed more often
+ *     are declared first, if the field layout is on;</li>
+ *     <li>a stage is grouped with its only dependant by {@link StageGroups}, if it is init at
+ *     least as often as the dependant, and is not grouped otherwise.</li>
+ * </ul>
+ *
+ * <p>The profile doesn't record which stages are init together, a stage is considered init
+ * together with its only dependant by their init counts alone.
+ *
+ * <p>The file format is a line per stage: the stage name, as in {@code stageCounters()}, and
+ * the counters, separated by spaces. Stages not found in the profile are compiled as without
+ * profile.
+ */
+public final class StageProfile {
+
+    static final double COLD_FRACTION = 0.01;
+
+    private final Map<String, long[]> counters = new TreeMap<>();
+
+    public StageProfile() {}
+
+    /**
+     * Adds counters of a context, e. g. of each of the pooled contexts.
+     */
+    public StageProfile add(Map<String, long[]> stageCounters) {
+        stageCounters.forEach((stage, added) -> {
+            long[] sum = counters.computeIfAbsent(stage, s -> new long[COUNTERS.size()]);
+            for (int i = 0; i < sum.length && i < added.length; i++) {
+                sum[i] += added[i];
+            }
+        });
+        return this;
+    }
+
+    public void write(Path file) throws IOException {
+        List<String> lines = counters.entrySet().stream().map(e -> {
+            StringBuilder line = new StringBuilder(e.getKey());
+            for (long counter : e.getValue()) {
+                line.append(' ').append(counter);
+            }
+            return line.toString();
+        }).collect(toList());
+        Files.write(file, lines);
+    }
+
+    public static StageProfile read(Path file) throws IOException {
+        Map<String, long[]> counters = new HashMap<>();
+        for (String line : Files.readAllLines(file)) {
+            if (line.trim().isEmpty())
+                continue;
+            String[] parts = line.trim().split("\\s+");
+            long[] stageCounters = new long[parts.length - 1];
+            for (int i = 1; i < parts.length; i++) {
+                stageCounters[i - 1] = Long.parseLong(parts[i]);
+            }
+            counters.put(parts[0], stageCounters);
+        }
+        return new StageProfile().add(counters);
+    }
+
+    private long counter(StageModel stage, int counter) {
+        long[] stageCounters = counters.get(stage.qualifiedName());
+        return stageCounters != null ? stageCounters[counter] : -1L;
+    }
+
+    boolean profiled(StageModel stage) {
+        return counters.containsKey(stage.qualifiedName());
+    }
+
+    boolean cold(StageModel stage) {
+        long maxInits = counters.values().stream().mapToLong(c -> c[INITS]).max().orElse(0L);
+        return profiled(stage) && counter(stage, INITS) < maxInits * COLD_FRACTION;
+    }
+
+    boolean mostlyInitByGuards(StageModel stage) {
+        return profiled(stage) && counter(stage, SLOW_GUARDS) * 2 > counter(stage, INITS);
+    }
+
+    boolean initTogether(StageModel stage, StageModel dependant) {
+        return profiled(stage) && profiled(dependant) &&
+                counter(stage, INITS) >= counter(dependant, INITS);
+    }
+
+    /**
+     * Inits and slow guard paths, which are the lower bound of the stage's accesses.
+     */
+    long hotness(StageModel stage) {
+        return profiled(stage) ? counter(stage, INITS) + counter(stage, SLOW_GUARDS) : 0L;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Decodes stage lifecycle trace records, written by contexts compiled with
+ * {@link Compiler#traceStages(int)}, oldest first.
+ *
+ * <p>Usage as a tool: {@code StageTraceReader <trace file> <stage names file>}, where the
+ * trace file is the memory-mapped buffer, passed to the generated
+ * {@code setStageTraceBuffer()}, and the stage names file lists
+ * {@link Compiler#getTracedStageNames()}, one per line.
+ */
+public final class StageTraceReader {
+
+    private static final String[] EVENTS = {"init", "close", "cascade close"};
+
+    private StageTraceReader() {}
+
+    public static List<String> read(ByteBuffer trace, List<String> stageNames) {
+        long records = trace.getLong(0);
+        int capacity = (trace.capacity() - 16) >>> 4;
+        List<String> decoded = new ArrayList<>();
+        for (long record = Math.max(0L, records - capacity); record < records; record++) {
+            int offset = 16 + (int) (record % capacity) * 16;
+            long stageAndEvent = trace.getLong(offset);
+            int stage = (int) (stageAndEvent >>> 8);
+            int event = (int) (stageAndEvent & 0xFF);
+            String stageName = stage < stageNames.size() ? stageNames.get(stage) : "#" + stage;
+            String eventName = event < EVENTS.length ? EVENTS[event] : "#" + event;
+            decoded.add(trace.getLong(offset + 8) + " " + stageName + " " + eventName);
+        }
+        return decoded;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: StageTraceReader <trace file> <stage names file>");
+            System.exit(1);
+        }
+        List<String> stageNames = Files.readAllLines(Paths.get(args[1]));
+        try (FileChannel channel = FileChannel.open(Paths.get(args[0]), READ)) {
+            MappedByteBuffer trace =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            read(trace, stageNames).forEach(System.out::println);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg;
+
+import spoon.reflect.code.*;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtField;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.declaration.CtParameter;
+import spoon.reflect.factory.Factory;
+import spoon.reflect.reference.CtParameterReference;
+import spoon.reflect.reference.CtTypeReference;
+
+import java.util.EnumSet;
+import java.util.List;
+
+import static java.util.Collections.emptySet;
+import static java.util.Collections.singletonList;
+import static spoon.reflect.declaration.ModifierKind.PUBLIC;
+
+/**
+ * Generates {@code copyStateFrom(other)} method of the root class: closes this context and
+ * copies fields of all stages of all compilation nodes, which are init in the other context,
+ * along with packed init state words, stages-to-close words and lazy invalidation epochs and
+ * versions, so that the context is init exactly as the other one, without running init methods.
+ *
+ * <p>The copy is shallow: objects, referenced from stage fields, become shared between the
+ * contexts. Always init stages are not copied, they are init in constructors anyway.
+ */
+final class StateCopy {
+
+    private StateCopy() {}
+
+    /**
+     * @param rootStateFields stages-to-close words and the stage epoch of the root node
+     */
+    static void generateCopyStateFrom(CompilationContext cxt, CompilationNode root,
+            CtMethod<Void> globalClose, List<StageModel> stages,
+            List<CtField<?>> rootStateFields) {
+        Factory f = root.f;
+        CtClass<?> rootClass = root.classesToMerge.get(0);
+        CtParameter<?> other = f.Core().createParameter();
+        other.setType((CtTypeReference) rootClass.getReference());
+        other.setSimpleName("other");
+        CtBlock<Void> body = f.Core().createBlock();
+        // the parameter should be attached to the method to create references to it
+        f.Method().create(rootClass, EnumSet.of(PUBLIC), f.Type().VOID_PRIMITIVE,
+                "copyStateFrom", singletonList(other), emptySet(), body);
+
+        body.addStatement(f.Code().createCodeSnippetStatement("if (other == this) return"));
+        body.addStatement(f.Code().createInvocation(
+                f.Code().createThisAccess(rootClass.getReference()), globalClose.getReference()));
+        for (StageModel stage : stages) {
+            CompilationNode node = cxt.getCompilationNode(stage.declaringType);
+            stage.addStateCopy(body, () -> root.access(node, AccessType.Read),
+                    () -> otherAccess(root, node, other));
+        }
+        cxt.allCompilationNodes().forEach(node -> node.initBitsWords().forEach(word ->
+                body.addStatement(StageModel.fieldCopy(root.access(node, AccessType.Read),
+                        otherAccess(root, node, other), word))));
+        rootStateFields.forEach(field -> body.addStatement(StageModel.fieldCopy(
+                root.access(root, AccessType.Read), otherAccess(root, root, other), field)));
+    }
+
+    private static CtExpression<?> otherAccess(
+            CompilationNode root, CompilationNode node, CtParameter<?> other) {
+        CtVariableRead<Object> otherRead = root.f.Core().createVariableRead();
+        otherRead.setVariable((CtParameterReference) other.getReference());
+        otherRead.setType((CtTypeReference) other.getType());
+        CtExpression<?> access = root.access(node, AccessType.Read);
+        if (access instanceof CtThisAccess)
+            return otherRead;
+        CtFieldAccess<?> innerMostAccess = (CtFieldAccess<?>) access;
+        while (innerMostAccess.getTarget() instanceof CtFieldAccess)
+            innerMostAccess = (CtFieldAccess<?>) innerMostAccess.getTarget();
+        innerMostAccess.setTarget(otherRead);
+        return access;
+    }
+}
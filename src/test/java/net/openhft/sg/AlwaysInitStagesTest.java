@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.sg;
+
+import org.junit.Test;
+import spoon.reflect.declaration.CtClass;
+
+import static net.openhft.sg.AutoGenerateFieldAccessesTest.getFactoryForTest;
+import static net.openhft.sg.GeneratedClasses.*;
+import static net.openhft.sg.StringUtils.capitalize;
+import static org.junit.Assert.*;
+
+public class AlwaysInitStagesTest {
+
+    @Test
+    public void testEliminateAlwaysInitStages() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(ConstructorInitStages.class);
+        Compiler compiler = new Compiler(root).eliminateAlwaysInitStages();
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        // Buffer and Mask are init in the constructor and closed only by the global close
+        for (String stage : new String[] {"buffer", "mask"}) {
+            assertTrue(compiled.getMethodsByName(stage + "Init").isEmpty());
+            assertTrue(compiled.getMethodsByName(stage).isEmpty());
+            assertTrue(compiled.getMethodsByName("close" + capitalize(stage)).isEmpty());
+            assertTrue(compiled.getMethodsByName("doClose" + capitalize(stage)).isEmpty());
+        }
+        assertTrue(body(compiled, "initMask").contains("(buffer.length) - 1"));
+        assertTrue(body(compiled, "initIndex").contains("index & (mask)"));
+        assertFalse(body(compiled, "close").contains("Buffer"));
+        assertFalse(body(compiled, "close").contains("Mask"));
+        // Scale is also init outside the constructor, in rescale(), and Scaled depends on it
+        for (String stage : new String[] {"scale", "scaled"}) {
+            assertEquals(1, compiled.getMethodsByName(stage + "Init").size());
+            assertEquals(1, compiled.getMethodsByName("close" + capitalize(stage)).size());
+        }
+        assertTrue(body(compiled, "scaledLength").contains("scaled()"));
+        assertTrue(body(compiled, "close").contains("this.doCloseScaled()"));
+
+        Object cxt = newInstance(compiled);
+        assertEquals(0L, call(cxt, "get", 3));
+        assertEquals(32, call(cxt, "scaledLength"));
+        call(cxt, "rescale");
+        assertNull("re-init of Scale closes Scaled", get(cxt, "scaled"));
+        assertEquals(32, call(cxt, "scaledLength"));
+        call(cxt, "close");
+        assertNotNull("always init stages are not closed", get(cxt, "buffer"));
+        assertEquals(15, get(cxt, "mask"));
+        assertNull(get(cxt, "scaled"));
+        assertEquals(0L, call(cxt, "get", 17));
+        assertEquals(1, get(cxt, "index"));
+        assertEquals(32, call(cxt, "scaledLength"));
+    }
+
+    private static String body(CtClass<?> type, String method) {
+        return type.getMethodsByName(method).get(0).getBody().toString();
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.sg;
+
+import org.junit.Test;
+import spoon.reflect.declaration.CtClass;
+
+import static net.openhft.sg.AutoGenerateFieldAccessesTest.getFactoryForTest;
+import static net.openhft.sg.GeneratedClasses.*;
+import static org.junit.Assert.*;
+
+public class CheckpointTest {
+
+    @Test
+    public void testGenerateCheckpoints() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(DevirtualizedRoot.class);
+        CompilationNode child = root.createChild();
+        child.addClassToMerge(DevirtualizedPart.class);
+        Compiler compiler = new Compiler(root).packInitStates().generateCheckpoints();
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        assertEquals(1, compiled.getMethodsByName("newCheckpoint").size());
+        assertFalse("checkpoint() shouldn't allocate",
+                compiled.getMethodsByName("checkpoint").get(0).getBody().toString()
+                        .contains("new long"));
+
+        Object cxt = newInstance(compiled);
+        long[] checkpoint = (long[]) call(cxt, "newCheckpoint");
+        Object part = get(cxt, "part");
+        call(cxt, "compute", 2);
+        long base = (long) get(part, "base");
+        // Key is closed before the checkpoint and re-init after it
+        call(cxt, "closeKey");
+        call(cxt, "checkpoint", checkpoint);
+        call(cxt, "compute", 3);
+        assertTrue((boolean) call(cxt, "keyInit"));
+        call(cxt, "rollbackTo", checkpoint);
+        assertFalse("stages init since the checkpoint should be closed",
+                (boolean) call(cxt, "keyInit"));
+        assertTrue((boolean) call(part, "baseInit"));
+        assertEquals(base, get(part, "base"));
+
+        call(cxt, "compute", 4);
+        call(cxt, "checkpoint", checkpoint);
+        call(cxt, "rollbackTo", checkpoint);
+        assertTrue("stages init at the checkpoint should be kept",
+                (boolean) call(cxt, "keyInit"));
+        call(cxt, "close");
+        assertFalse((boolean) call(cxt, "keyInit"));
+        assertFalse((boolean) call(part, "baseInit"));
+    }
+}
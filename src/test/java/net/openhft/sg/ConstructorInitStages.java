@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.sg;
+
+@Staged
+public class ConstructorInitStages {
+
+    long[] buffer = null;
+
+    void initBuffer() {
+        buffer = new long[16];
+    }
+
+    int mask = -1;
+
+    void initMask() {
+        mask = buffer.length - 1;
+    }
+
+    int index = -1;
+
+    void initIndex(int index) {
+        this.index = index & mask;
+    }
+
+    int scale = -1;
+
+    void initScale() {
+        scale = 2;
+    }
+
+    long[] scaled = null;
+
+    void initScaled() {
+        scaled = new long[buffer.length * scale];
+    }
+
+    public ConstructorInitStages() {
+        initBuffer();
+        initMask();
+        initScale();
+        initScaled();
+    }
+
+    public long get(int index) {
+        initIndex(index);
+        return buffer[this.index];
+    }
+
+    public int scaledLength() {
+        return scaled.length;
+    }
+
+    public void rescale() {
+        initScale();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.sg;
+
+import org.junit.Test;
+import spoon.reflect.declaration.CtClass;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+
+import static net.openhft.sg.AutoGenerateFieldAccessesTest.getFactoryForTest;
+import static net.openhft.sg.GeneratedClasses.call;
+import static net.openhft.sg.GeneratedClasses.compile;
+import static net.openhft.sg.GeneratedClasses.get;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ContextPoolTest {
+
+    @Test
+    public void testGeneratePool() throws Exception {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(DevirtualizedRoot.class);
+        CompilationNode child = root.createChild();
+        child.addClassToMerge(DevirtualizedPart.class);
+        Compiler compiler = new Compiler(root).generatePool();
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        Constructor<?> poolConstructor = compile(compiled)
+                .loadClass(compiled.getQualifiedName() + "$Pool").getConstructor(int.class);
+        try {
+            poolConstructor.newInstance(0);
+            fail("zero capacity should be rejected");
+        } catch (InvocationTargetException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+
+        Object pool = poolConstructor.newInstance(2);
+        Object cxt = call(pool, "acquire");
+        call(cxt, "compute", 3);
+        assertEquals(3, get(cxt, "key"));
+        call(pool, "release", cxt);
+        // released context is closed and reused by the next acquire
+        assertEquals(-1, get(cxt, "key"));
+        assertEquals(-1L, get(get(cxt, "part"), "base"));
+        assertSame(cxt, call(pool, "acquire"));
+        Object second = call(pool, "acquire");
+        assertNotSame(cxt, second);
+
+        // contexts beyond the capacity are dropped on release
+        Object third = call(pool, "acquire");
+        call(pool, "release", cxt);
+        call(pool, "release", second);
+        call(pool, "release", third);
+        Object a = call(pool, "acquire"), b = call(pool, "acquire"), c = call(pool, "acquire");
+        assertTrue((a == cxt || a == second) && (b == cxt || b == second) && a != b);
+        assertTrue(c != cxt && c != second && c != third);
+    }
+}
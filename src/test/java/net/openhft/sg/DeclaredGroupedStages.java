@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.sg;
+
+@Staged
+public class DeclaredGroupedStages {
+
+    @GroupedWith("Window")
+    long base = -1L;
+
+    void initBase() {
+        base = System.nanoTime() & 0xFFFFL;
+    }
+
+    long[] window = null;
+
+    void initWindow() {
+        long base = this.base;
+        window = new long[] {base, base + 1, base + 2};
+    }
+
+    @Stage("Window")
+    long offset(int index) {
+        return window[index] - base;
+    }
+
+    public long windowOffset(int index) {
+        return offset(index % 3);
+    }
+
+    long[] history = null;
+
+    void initHistory() {
+        history = new long[] {base};
+    }
+
+    public long historyBase() {
+        return history[0];
+    }
+}
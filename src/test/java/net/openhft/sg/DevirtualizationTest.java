@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.sg;
+
+import org.junit.Test;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtType;
+
+import static net.openhft.sg.AutoGenerateFieldAccessesTest.getFactoryForTest;
+import static net.openhft.sg.GeneratedClasses.call;
+import static net.openhft.sg.GeneratedClasses.get;
+import static net.openhft.sg.GeneratedClasses.newInstance;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static spoon.reflect.declaration.ModifierKind.FINAL;
+import static spoon.reflect.declaration.ModifierKind.PRIVATE;
+
+public class DevirtualizationTest {
+
+    @Test
+    public void testDevirtualize() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(DevirtualizedRoot.class);
+        CompilationNode child = root.createChild();
+        child.addClassToMerge(DevirtualizedPart.class);
+        Compiler compiler = new Compiler(root).devirtualize();
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        CtType<?> part = compiled.getNestedType("DevirtualizedPart");
+        assertTrue(compiled.hasModifier(FINAL));
+        assertTrue(part.hasModifier(FINAL));
+        // stage refs are typed with the concrete merged class, not the interface
+        assertTrue(compiled.getField("part").hasModifier(FINAL));
+        assertEquals(part.getQualifiedName(),
+                compiled.getField("part").getType().getQualifiedName());
+        // methods, not called from outside, become private, the rest become final
+        assertTrue(compiled.getMethodsByName("initKey").get(0).hasModifier(PRIVATE));
+        assertTrue(compiled.getMethodsByName("scaled").get(0).hasModifier(PRIVATE));
+        assertTrue(compiled.getMethodsByName("keyInit").get(0).hasModifier(FINAL));
+        assertTrue(part.getMethodsByName("base").get(0).hasModifier(FINAL));
+
+        Object cxt = newInstance(compiled);
+        long value = (Long) call(cxt, "compute", 3);
+        assertEquals(3 * (Long) get(get(cxt, "part"), "base"), value);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg;
+
+import org.junit.Test;
+import spoon.reflect.declaration.CtClass;
+
+import static net.openhft.sg.AutoGenerateFieldAccessesTest.getFactoryForTest;
+import static net.openhft.sg.GeneratedClasses.*;
+import static org.junit.Assert.*;
+
+public class EntryMethodVersioningTest {
+
+    @Test
+    public void testVersionEntryMethods() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(RedundantGuards.class);
+        Compiler compiler = new Compiler(root).versionEntryMethods().packInitStates();
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        assertTrue(body(compiled, "lookup").contains("(stageInitBits0 & 0x6L) == 0x6L"));
+        checkLookup(compiled);
+    }
+
+    @Test
+    public void testVersionEntryMethodsWithoutPackedInitStates() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(RedundantGuards.class);
+        Compiler compiler = new Compiler(root).versionEntryMethods();
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        assertTrue(body(compiled, "lookup").contains("this.tableInit()"));
+        assertTrue(body(compiled, "lookup").contains("this.sumInit()"));
+        checkLookup(compiled);
+    }
+
+    private static void checkLookup(CtClass<?> compiled) {
+        assertEquals(1, compiled.getMethodsByName("lookupFastPath").size());
+        String fastPath = body(compiled, "lookupFastPath");
+        assertFalse(fastPath.contains("table()"));
+        assertFalse(fastPath.contains("sum()"));
+
+        Object cxt = newInstance(compiled);
+        call(cxt, "total", 3, 1);
+        // cold: table and sum are not init yet, the guarded code inits them
+        assertEquals(3L, call(cxt, "lookup", 1));
+        assertEquals(true, call(cxt, "sumInit"));
+        // warm: the fast path gives the same results
+        assertEquals(3L, call(cxt, "lookup", 1));
+        assertEquals(3L, call(cxt, "lookup", 10));
+        ((long[]) get(cxt, "table"))[1] = 5L;
+        assertEquals(8L, call(cxt, "lookup", 1));
+
+        // a closed stage falls back to the guarded code, which inits it again,
+        // now sum = 5 + key
+        call(cxt, "closeSum");
+        assertEquals(13L, call(cxt, "lookup", 1));
+        assertEquals(13L, call(cxt, "lookup", 1));
+        assertEquals(true, call(cxt, "sumInit"));
+        call(cxt, "closeTable");
+        assertEquals(false, call(cxt, "sumInit"));
+        assertEquals(3L, call(cxt, "lookup", 1));
+        assertEquals(4, ((long[]) get(cxt, "table")).length);
+
+        // re-init of Key closes table and sum, the fast path doesn't read their stale values
+        call(cxt, "initKey", 7);
+        assertEquals(false, call(cxt, "tableInit"));
+        assertEquals(7L, call(cxt, "lookup", 1));
+        assertEquals(8, ((long[]) get(cxt, "table")).length);
+        assertEquals(7L, call(cxt, "lookup", 1));
+    }
+
+    private static String body(CtClass<?> type, String method) {
+        return type.getMethodsByName(method).get(0).getBody().toString();
+    }
+}
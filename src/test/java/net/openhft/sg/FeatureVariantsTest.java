@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.sg;
+
+import org.junit.Test;
+import spoon.reflect.declaration.CtClass;
+
+import static net.openhft.sg.AutoGenerateFieldAccessesTest.getFactoryForTest;
+import static net.openhft.sg.GeneratedClasses.*;
+import static org.junit.Assert.*;
+
+public class FeatureVariantsTest {
+
+    @Test
+    public void testDisableFeatures() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(FeatureVariants.class);
+        Compiler compiler = new Compiler(root).disableFeatures("stats", "replication");
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        assertNull(compiled.getField("lookups"));
+        for (String method : new String[] {"initLookups", "lookupsInit", "lookups",
+                "closeLookups", "countLookup", "lookupCount"}) {
+            assertTrue(method, compiled.getMethodsByName(method).isEmpty());
+        }
+        assertFalse(body(compiled, "initKey").contains("countLookup"));
+        // the interface method is kept, but its body is stubbed
+        assertEquals("return 0L", body(compiled, "compute").replaceAll("[{};\\s]+", " ").trim());
+
+        Object cxt = newInstance(compiled);
+        assertEquals(0L, call(cxt, "compute", 3));
+    }
+
+    @Test
+    public void testAllFeaturesEnabled() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(FeatureVariants.class);
+        Compiler compiler = new Compiler(root).disableFeatures("unknown");
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        assertNotNull(compiled.getField("lookups"));
+
+        Object cxt = newInstance(compiled);
+        assertEquals(93L, call(cxt, "compute", 3));
+        assertEquals(124L, call(cxt, "compute", 4));
+        assertEquals(2L, call(cxt, "lookupCount"));
+    }
+
+    @Test
+    public void testKeptMethodUsingDisabledStage() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(PrunedStageUse.class);
+        try {
+            new Compiler(root).disableFeatures("stats").compile();
+            fail("lookup() reads the stage of the disabled feature");
+        } catch (StageGraphCompilationException e) {
+            assertEquals("PrunedStageUse.lookup() accesses field lookups of a disabled feature",
+                    e.getMessage());
+        }
+    }
+
+    private static String body(CtClass<?> type, String method) {
+        return type.getMethodsByName(method).get(0).getBody().toString();
+    }
+}
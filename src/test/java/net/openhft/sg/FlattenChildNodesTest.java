@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.sg;
+
+import org.junit.Test;
+import spoon.reflect.declaration.CtClass;
+
+import static net.openhft.sg.AutoGenerateFieldAccessesTest.getFactoryForTest;
+import static net.openhft.sg.GeneratedClasses.*;
+import static org.junit.Assert.*;
+
+public class FlattenChildNodesTest {
+
+    @Test
+    public void testFlattenChildNodes() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(FlattenedRoot.class);
+        CompilationNode child = root.createChild();
+        child.addClassToMerge(FlattenedChild.class);
+        Compiler compiler = new Compiler(root).flattenChildNodes().packInitStates();
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        // the child node class and the field holding it are gone, its members are prefixed
+        // on name clashes with the root
+        assertTrue(compiled.getNestedTypes().isEmpty());
+        assertNull(compiled.getField("child"));
+        assertTrue(compiled.getMethodsByName("child").isEmpty());
+        assertNotNull(compiled.getField("value"));
+        assertNotNull(compiled.getField("child_key"));
+        assertNotNull(compiled.getField("child_stageInitBits0"));
+        assertEquals(1, compiled.getMethodsByName("child_initKey").size());
+
+        Object cxt = newInstance(compiled);
+        // value = key * 2, sum = value + key
+        assertEquals(15L, call(cxt, "sumAndValue", 3));
+        assertEquals(6L, get(cxt, "value"));
+        call(cxt, "child_initKey");
+        assertEquals(6L, get(cxt, "child_key"));
+        assertEquals(true, call(cxt, "child_keyInit"));
+        // re-init of Key closes stages of the flattened child too
+        assertEquals(20L, call(cxt, "sumAndValue", 4));
+        assertEquals(false, call(cxt, "child_keyInit"));
+        assertEquals(-1L, get(cxt, "child_key"));
+        call(cxt, "close");
+        assertEquals(false, call(cxt, "keyInit"));
+        assertEquals(false, call(cxt, "valueInit"));
+        assertEquals(false, call(cxt, "sumInit"));
+        assertEquals(-1L, get(cxt, "value"));
+        assertEquals(25L, call(cxt, "sumAndValue", 5));
+    }
+}
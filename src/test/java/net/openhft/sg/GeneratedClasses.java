@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.sg;
+
+import spoon.reflect.declaration.CtClass;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Compiles the printed output of {@link Compiler#compile()} with javac and loads it, preferring
+ * the generated classes to the staged classes with the same names, to check the semantics of
+ * the generated code.
+ */
+public final class GeneratedClasses {
+
+    /**
+     * Compiles the generated class and returns the class loader of the compiled classes.
+     */
+    public static ClassLoader compile(CtClass<?> generated) {
+        try {
+            Path dir = Files.createTempDirectory("sg");
+            String packageName = generated.getPackage().getQualifiedName();
+            Path source = dir.resolve(generated.getQualifiedName().replace('.', '/') + ".java");
+            Files.createDirectories(source.getParent());
+            Files.write(source, ("package " + packageName + ";\n\n" + generated)
+                    .getBytes(StandardCharsets.UTF_8));
+            JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+            assertNotNull("tests should run on a JDK", javac);
+            ByteArrayOutputStream errors = new ByteArrayOutputStream();
+            int result = javac.run(null, null, errors, "-proc:none", "-nowarn",
+                    "-cp", System.getProperty("java.class.path"),
+                    "-d", dir.toString(), source.toString());
+            assertEquals(errors.toString() + "\n" + generated, 0, result);
+            return new URLClassLoader(new URL[] {dir.toUri().toURL()},
+                    GeneratedClasses.class.getClassLoader()) {
+                @Override
+                protected Class<?> loadClass(String name, boolean resolve)
+                        throws ClassNotFoundException {
+                    synchronized (getClassLoadingLock(name)) {
+                        Class<?> c = findLoadedClass(name);
+                        if (c == null &&
+                                Files.exists(dir.resolve(name.replace('.', '/') + ".class"))) {
+                            c = findClass(name);
+                        }
+                        return c != null ? c : super.loadClass(name, resolve);
+                    }
+                }
+            };
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Compiles and loads the generated class. The generated class should access only public
+     * types of the staged classes, because it is loaded by another class loader.
+     */
+    public static Class<?> compileAndLoad(CtClass<?> generated) {
+        try {
+            return compile(generated).loadClass(generated.getQualifiedName());
+        } catch (ClassNotFoundException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    public static Object newInstance(CtClass<?> generated) {
+        try {
+            return compileAndLoad(generated).newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Calls the method with the given name and number of arguments, accessible or not.
+     */
+    public static Object call(Object target, String methodName, Object... args) {
+        for (Class<?> c = target.getClass(); c != null; c = c.getSuperclass()) {
+            for (Method method : c.getDeclaredMethods()) {
+                if (method.getName().equals(methodName) &&
+                        method.getParameterCount() == args.length) {
+                    method.setAccessible(true);
+                    try {
+                        return method.invoke(target, args);
+                    } catch (IllegalAccessException e) {
+                        throw new AssertionError(e);
+                    } catch (InvocationTargetException e) {
+                        if (e.getCause() instanceof RuntimeException)
+                            throw (RuntimeException) e.getCause();
+                        throw new AssertionError(e.getCause());
+                    }
+                }
+            }
+        }
+        throw new AssertionError(methodName + " not found in " + target.getClass());
+    }
+
+    /**
+     * Reads the field with the given name, accessible or not.
+     */
+    public static Object get(Object target, String fieldName) {
+        for (Class<?> c = target.getClass(); c != null; c = c.getSuperclass()) {
+            try {
+                java.lang.reflect.Field field = c.getDeclaredField(fieldName);
+                field.setAccessible(true);
+                return field.get(target);
+            } catch (NoSuchFieldException e) {
+                // look in the superclass
+            } catch (IllegalAccessException e) {
+                throw new AssertionError(e);
+            }
+        }
+        throw new AssertionError(fieldName + " not found in " + target.getClass());
+    }
+
+    private GeneratedClasses() {}
+}
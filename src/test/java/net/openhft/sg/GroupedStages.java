@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.sg;
+
+@Staged
+public class GroupedStages {
+
+    long seed = -1L;
+
+    void initSeed() {
+        seed = System.nanoTime();
+    }
+
+    long[] table = null;
+
+    void initTable() {
+        long seed = this.seed;
+        table = new long[] {seed, seed * 31, seed * 961};
+    }
+
+    @Stage("Table")
+    long lookup(int index) {
+        return table[index] ^ seed;
+    }
+
+    public long hash(int index) {
+        return lookup(index % 3);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.sg;
+
+import org.junit.Test;
+import spoon.reflect.declaration.CtClass;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static net.openhft.sg.AutoGenerateFieldAccessesTest.getFactoryForTest;
+import static net.openhft.sg.GeneratedClasses.*;
+import static org.junit.Assert.*;
+
+public class InitLatencySamplingTest {
+
+    @Test
+    public void testSampleInitLatencies() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(DevirtualizedRoot.class);
+        CompilationNode child = root.createChild();
+        child.addClassToMerge(DevirtualizedPart.class);
+        Compiler compiler = new Compiler(root).sampleInitLatencies(4);
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        assertEquals("STAGE_INIT_LATENCIES ? new long[304] : null",
+                compiled.getField("keyInitLatencies").getDefaultExpression().toString());
+
+        Object cxt = newInstance(compiled);
+        assertNull("histograms shouldn't be allocated when sampling is off",
+                get(cxt, "keyInitLatencies"));
+        for (int i = 0; i < 8; i++) {
+            call(cxt, "compute", i);
+        }
+        Map<String, long[]> histograms = new HashMap<>();
+        call(cxt, "addInitLatenciesTo", histograms);
+        assertTrue(histograms.isEmpty());
+
+        System.setProperty("net.openhft.sg.stageInitLatencies", "true");
+        try {
+            cxt = newInstance(compiled);
+        } finally {
+            System.clearProperty("net.openhft.sg.stageInitLatencies");
+        }
+        for (int i = 0; i < 8; i++) {
+            call(cxt, "compute", i);
+        }
+        call(cxt, "addInitLatenciesTo", histograms);
+        long sampled = 0L;
+        for (long count : histograms.get("DevirtualizedRoot.Key")) {
+            sampled += count;
+        }
+        assertEquals("each 4th init of 8 is sampled", 2L, sampled);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.sg;
+
+import org.junit.Test;
+import spoon.reflect.declaration.CtClass;
+
+import static net.openhft.sg.AutoGenerateFieldAccessesTest.getFactoryForTest;
+import static net.openhft.sg.GeneratedClasses.*;
+import static org.junit.Assert.*;
+import static spoon.reflect.declaration.ModifierKind.FINAL;
+
+public class LazyChildNodeTest {
+
+    @Test
+    public void testInstantiateLazily() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(LazyRoot.class);
+        root.createChild().addClassToMerge(LazyResize.class).instantiateLazily();
+        Compiler compiler = new Compiler(root).packInitStates().trackStagesToClose();
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        assertFalse(compiled.getField("resize").hasModifier(FINAL));
+        assertNull(compiled.getField("resize").getDefaultExpression());
+        assertEquals(1, compiled.getMethodsByName("resize").size());
+
+        Object cxt = newInstance(compiled);
+        assertEquals(3, call(cxt, "get", 3));
+        call(cxt, "close");
+        assertNull("close shouldn't allocate the lazy node", get(cxt, "resize"));
+        assertEquals(6L, call(cxt, "grow", 3));
+        assertNotNull(get(cxt, "resize"));
+        assertEquals(10L, call(cxt, "grow", 5));
+        call(cxt, "close");
+        assertEquals(14L, call(cxt, "grow", 7));
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.sg;
+
+import org.junit.Test;
+import spoon.reflect.declaration.CtClass;
+
+import static net.openhft.sg.AutoGenerateFieldAccessesTest.getFactoryForTest;
+import static net.openhft.sg.GeneratedClasses.*;
+import static org.junit.Assert.*;
+
+public class LazyRefreshTest {
+
+    @Test
+    public void testRefreshRunsDeclaredClose() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(LazyRefreshed.class);
+        Compiler compiler = new Compiler(root).lazyInvalidation();
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        assertTrue(compiled.getMethodsByName("refreshSquare").get(0).getBody().toString()
+                .contains("this.doCloseSquare()"));
+
+        Object cxt = newInstance(compiled);
+        assertEquals(8L, call(cxt, "cube", 2));
+        assertEquals(0, get(cxt, "squareCloses"));
+        assertEquals(27L, call(cxt, "cube", 3));
+        assertEquals("stale Square should be closed before the refresh",
+                1, get(cxt, "squareCloses"));
+        assertEquals(16L, call(cxt, "square", 4));
+        assertEquals(2, get(cxt, "squareCloses"));
+        assertEquals(64L, call(cxt, "cube", 4));
+        assertEquals(3, get(cxt, "squareCloses"));
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg;
+
+import org.junit.Test;
+import spoon.Launcher;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.factory.Factory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static net.openhft.sg.GeneratedClasses.*;
+import static org.junit.Assert.*;
+
+public class MethodSizesTest {
+
+    /**
+     * Enough dependants of Base, for closeBaseDependants() and the global close to exceed
+     * {@link MethodSizes#HUGE_METHOD_LIMIT}.
+     */
+    private static final int DEPENDANTS = 2100;
+    /**
+     * Enough statements for initBig() to exceed {@link MethodSizes#HUGE_METHOD_LIMIT}.
+     */
+    private static final int BIG_INIT_STATEMENTS = 1200;
+
+    @Test
+    public void testOutlineHugeMethods() {
+        Factory f = hugeStagesFactory();
+        CompilationNode root = CompilationNode.root(f);
+        root.addClassToMerge(f.Class().get("net.openhft.sg.HugeStages"));
+        Compiler compiler = new Compiler(root).packInitStates().checkMethodSizes();
+        CtClass<?> compiled = compiler.compile();
+
+        List<CtMethod<?>> closeBaseDependants = compiled.getMethodsByName("closeBaseDependants");
+        assertTrue(MethodSizes.estimate(closeBaseDependants.get(0).getBody()) <
+                MethodSizes.HUGE_METHOD_LIMIT);
+        assertTrue(body(compiled, "closeBaseDependants")
+                .contains("this.closeBaseDependantsPart1()"));
+        assertEquals(1, compiled.getMethodsByName("closeBaseDependantsPart0").size());
+        assertTrue(body(compiled, "close").contains("this.closePart1()"));
+        for (CtMethod<?> method : compiled.getMethods()) {
+            assertTrue(method.getSimpleName(), method.getSimpleName().equals("initBig") ||
+                    method.getSimpleName().equals("total") ||
+                    MethodSizes.estimate(method.getBody()) <= MethodSizes.HUGE_METHOD_LIMIT);
+        }
+        // the init bit update before both exits of initBig() is moved to a single method
+        String initBig = body(compiled, "initBig");
+        assertFalse(initBig.contains("stageInitBits"));
+        assertEquals(2, initBig.split("this.initBigEpilogue\\(\\)", -1).length - 1);
+        assertTrue(body(compiled, "initBigEpilogue").contains("|= "));
+
+        List<String> warnings = compiler.getMethodSizeWarnings();
+        assertTrue(warnings.toString(), warnings.stream().anyMatch(w ->
+                w.startsWith("HugeStages.total(): ") && w.contains("HugeMethodLimit")));
+        assertTrue(warnings.toString(), warnings.stream().anyMatch(w ->
+                w.startsWith("HugeStages.initBig(): ") && w.contains("HugeMethodLimit")));
+        assertTrue(warnings.stream().noneMatch(w -> w.startsWith("HugeStages.closeBase")));
+
+        Object cxt = newInstance(compiled);
+        long dependantsSum = DEPENDANTS * (DEPENDANTS - 1L) / 2;
+        assertEquals(dependantsSum + DEPENDANTS, call(cxt, "total", 1));
+        assertEquals(true, call(cxt, "dep1000Init"));
+        // re-init of Base closes all dependants through the outlined parts
+        call(cxt, "initBase", 2);
+        assertEquals(false, call(cxt, "dep0Init"));
+        assertEquals(false, call(cxt, "dep" + (DEPENDANTS - 1) + "Init"));
+        assertEquals(dependantsSum + 2 * DEPENDANTS, call(cxt, "total", 2));
+        assertEquals((long) BIG_INIT_STATEMENTS, call(cxt, "big", 2));
+        assertEquals(true, call(cxt, "bigInit"));
+        call(cxt, "close");
+        assertEquals(false, call(cxt, "dep" + (DEPENDANTS - 1) + "Init"));
+        assertEquals(false, call(cxt, "bigInit"));
+        assertEquals(-1L, call(cxt, "big", 0));
+        assertEquals(true, call(cxt, "bigInit"));
+    }
+
+    /**
+     * Generates the source of a staged class, too big to keep in the repository: stage Base with
+     * {@link #DEPENDANTS} dependant stages, and stage Big with a huge init method.
+     */
+    private static Factory hugeStagesFactory() {
+        StringBuilder source = new StringBuilder();
+        source.append("package net.openhft.sg;\n\n@Staged\npublic class HugeStages {\n");
+        source.append("    int base = -1;\n");
+        source.append("    void initBase(int base) { this.base = base; }\n");
+        StringBuilder total = new StringBuilder();
+        for (int i = 0; i < DEPENDANTS; i++) {
+            source.append("    long dep").append(i).append(" = -1L;\n");
+            source.append("    void initDep").append(i).append("() { dep").append(i)
+                    .append(" = base + ").append(i).append("L; }\n");
+            total.append("        s += dep").append(i).append(";\n");
+        }
+        source.append("    public long total(int base) {\n        initBase(base);\n")
+                .append("        long s = 0;\n").append(total).append("        return s;\n    }\n");
+        source.append("    long big = -2L;\n");
+        source.append("    void initBig() {\n");
+        source.append("        if (base == 0) { big = -1L; return; }\n");
+        source.append("        long s = 0;\n");
+        for (int i = 0; i < BIG_INIT_STATEMENTS; i++) {
+            source.append("        s += 1L;\n");
+        }
+        source.append("        big = s;\n    }\n");
+        source.append("    public long big(int base) {\n        initBase(base);\n")
+                .append("        return big;\n    }\n");
+        source.append("}\n");
+        try {
+            Path dir = Files.createTempDirectory("sg");
+            Path file = dir.resolve("net/openhft/sg/HugeStages.java");
+            Files.createDirectories(file.getParent());
+            Files.write(file,
+                    source.toString().getBytes(StandardCharsets.UTF_8));
+            Launcher spoon = new Launcher();
+            spoon.getEnvironment().setComplianceLevel(8);
+            spoon.addInputResource(dir.toString());
+            spoon.buildModel();
+            return spoon.getFactory();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String body(CtClass<?> type, String method) {
+        return type.getMethodsByName(method).get(0).getBody().toString();
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.sg;
+
+import org.junit.Test;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtType;
+
+import static net.openhft.sg.AutoGenerateFieldAccessesTest.getFactoryForTest;
+import static net.openhft.sg.GeneratedClasses.*;
+import static org.junit.Assert.*;
+
+public class PrimitiveSpecializationTest {
+
+    @Test
+    public void testSpecialize() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(SpecializedRoot.class);
+        CompilationNode child = root.createChild();
+        child.addClassToMerge(SpecializedEntry.class).specialize("K", long.class);
+        Compiler compiler = new Compiler(root);
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        CtType<?> entry = compiled.getNestedType("SpecializedEntry");
+        assertEquals("long", entry.getField("key").getType().getSimpleName());
+        assertEquals("0L", entry.getField("key").getDefaultExpression().toString());
+        assertTrue("the init state of Key should be kept in a separate bit",
+                entry.getMethodsByName("keyInit").get(0).getBody().toString()
+                        .contains("stageInitBits0"));
+        assertTrue(body(entry, "keyEquals").contains("(key()) == other"));
+        assertTrue(body(entry, "keyEqualsObject")
+                .contains("java.lang.Long.valueOf(key()).equals(other)"));
+
+        Object cxt = newInstance(compiled);
+        for (long key : new long[] {5L, 0L, -1L, Long.MIN_VALUE}) {
+            assertEquals(Long.hashCode(key) & Integer.MAX_VALUE, call(cxt, "hash", key));
+        }
+        assertTrue((boolean) call(cxt, "keyEquals", -1L, -1L));
+        assertFalse((boolean) call(cxt, "keyEquals", -1L, -1));
+        assertFalse((boolean) call(cxt, "keyEquals", 0L, null));
+    }
+
+    private static String body(CtType<?> type, String method) {
+        return type.getMethodsByName(method).get(0).getBody().toString();
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg;
+
+@Staged
+public class PrunedStageUse {
+
+    int key = -1;
+
+    void initKey(int key) {
+        this.key = key;
+    }
+
+    @Feature("stats")
+    long lookups = -1L;
+
+    void initLookups() {
+        lookups = 0L;
+    }
+
+    public long lookup(int key) {
+        initKey(key);
+        return key + lookups;
+    }
+}
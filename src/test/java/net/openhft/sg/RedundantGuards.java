@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg;
+
+@Staged
+public class RedundantGuards {
+
+    int key = -1;
+
+    void initKey(int key) {
+        this.key = key;
+    }
+
+    long[] table = null;
+
+    void initTable() {
+        table = new long[key + 1];
+    }
+
+    long sum = -1L;
+
+    void initSum() {
+        long s = 0;
+        for (int i = 0; i < table.length; i++) {
+            s += table[i];
+        }
+        sum = s + key;
+    }
+
+    public long total(int key, int count) {
+        initKey(key);
+        long s = 0;
+        for (int i = 0; i < count; i++) {
+            s += table.length + i;
+        }
+        return s;
+    }
+
+    public long rehash(int firstKey, int keys) {
+        initKey(firstKey);
+        long s = 0;
+        for (int k = 0; k + table.length <= keys; k += table.length) {
+            initKey(key + 1);
+            s += key;
+            if (s > 100L)
+                break;
+        }
+        return s + table.length;
+    }
+
+    public long lookup(int index) {
+        if (index >= table.length)
+            return sum;
+        return table[index] + sum;
+    }
+}
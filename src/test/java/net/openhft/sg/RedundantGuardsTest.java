@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg;
+
+import org.junit.Test;
+import spoon.reflect.code.CtFor;
+import spoon.reflect.code.CtOperatorAssignment;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtMethod;
+import spoon.reflect.visitor.filter.TypeFilter;
+
+import java.util.List;
+
+import static net.openhft.sg.AutoGenerateFieldAccessesTest.getFactoryForTest;
+import static net.openhft.sg.GeneratedClasses.*;
+import static org.junit.Assert.*;
+
+public class RedundantGuardsTest {
+
+    @Test
+    public void testEliminateRedundantGuards() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(RedundantGuards.class);
+        Compiler compiler = new Compiler(root).eliminateRedundantGuards();
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        // Table is guarded in the loop condition
+        assertEquals(1, fors(compiled, "initSum").size());
+        assertEquals("s += table[i]",
+                fors(compiled, "initSum").get(0).getBody().getElements(
+                        new TypeFilter<>(CtOperatorAssignment.class))
+                        .get(0).toString());
+        // Table is first accessed in the loop body, the first iteration is peeled
+        String total = method(compiled, "total").getBody().toString();
+        assertTrue(total.contains("s += (table().length) + i"));
+        assertTrue(total.contains("for (; i < count; i++) {"));
+        assertEquals("s += (table.length) + i",
+                fors(compiled, "total").get(0).getBody().getElements(
+                        new TypeFilter<>(CtOperatorAssignment.class))
+                        .get(0).toString());
+        // the loop re-inits Key, Table is closed before the update and after a break
+        CtFor rehashLoop = fors(compiled, "rehash").get(0);
+        assertTrue(rehashLoop.getForUpdate().get(0).toString().contains("table()"));
+        assertTrue(method(compiled, "rehash").getBody().getLastStatement().toString()
+                .contains("table()"));
+
+        Object cxt = newInstance(compiled);
+        assertEquals(22L, call(cxt, "total", 3, 4));
+        assertEquals(0L, call(cxt, "total", 3, 0));
+        assertEquals(9L, call(cxt, "rehash", 1, 10));
+        assertEquals(156L, call(cxt, "rehash", 50, 1000));
+        assertEquals(52L, call(cxt, "lookup", 1));
+    }
+
+    private static CtMethod<?> method(CtClass<?> compiled, String name) {
+        return compiled.getMethodsByName(name).get(0);
+    }
+
+    private static List<CtFor> fors(CtClass<?> compiled, String method) {
+        return method(compiled, method).getElements(new TypeFilter<>(CtFor.class));
+    }
+}
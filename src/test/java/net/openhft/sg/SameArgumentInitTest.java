@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.sg;
+
+import org.junit.Test;
+import spoon.reflect.declaration.CtClass;
+
+import java.util.Map;
+
+import static net.openhft.sg.AutoGenerateFieldAccessesTest.getFactoryForTest;
+import static net.openhft.sg.GeneratedClasses.*;
+import static org.junit.Assert.*;
+
+public class SameArgumentInitTest {
+
+    @Test
+    public void testShortCircuitSameArgumentInits() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(DevirtualizedRoot.class);
+        CompilationNode child = root.createChild();
+        child.addClassToMerge(DevirtualizedPart.class);
+        Compiler compiler = new Compiler(root).packInitStates().shortCircuitSameArgumentInits()
+                .instrumentStages();
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        String initKey = compiled.getMethodsByName("initKey").get(0).getBody().toString();
+        assertTrue(initKey.contains("if (this.keyInit() && this.initKeyArgKey == key) return"));
+        assertTrue(initKey.contains("this.initKeyArgKey = key"));
+
+        System.setProperty("net.openhft.sg.stageStats", "true");
+        Object cxt;
+        try {
+            cxt = newInstance(compiled);
+        } finally {
+            System.clearProperty("net.openhft.sg.stageStats");
+        }
+        call(cxt, "compute", 3);
+        call(cxt, "compute", 3);
+        assertEquals(3, get(cxt, "key"));
+        call(cxt, "compute", 4);
+        call(cxt, "compute", 4);
+        assertEquals(4, get(cxt, "key"));
+        // the same argument after close is not short-circuited
+        call(cxt, "closeKey");
+        call(cxt, "compute", 4);
+        assertEquals(true, call(cxt, "keyInit"));
+        assertEquals(4, get(cxt, "key"));
+        @SuppressWarnings("unchecked")
+        Map<String, long[]> counters = (Map<String, long[]>) call(cxt, "stageCounters");
+        assertEquals("inits with the same argument are short-circuited",
+                3L, counters.get("DevirtualizedRoot.Key")[0]);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.sg;
+
+import org.junit.Test;
+import spoon.reflect.declaration.CtClass;
+
+import static net.openhft.sg.AutoGenerateFieldAccessesTest.getFactoryForTest;
+import static net.openhft.sg.GeneratedClasses.*;
+import static org.junit.Assert.*;
+
+public class StageGroupsTest {
+
+    @Test
+    public void testGroupStages() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(GroupedStages.class);
+        Compiler compiler = new Compiler(root).groupStages();
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        assertFalse("seed guard should be eliminated from Table stage methods",
+                body(compiled, "lookup").contains("seed()"));
+        assertTrue(body(compiled, "closeTable").contains("this.doCloseSeed()"));
+
+        Object cxt = newInstance(compiled);
+        call(cxt, "hash", 4);
+        long seed = (long) get(cxt, "seed");
+        assertNotEquals(-1L, seed);
+        assertEquals((seed * 31) ^ seed, call(cxt, "hash", 4));
+        call(cxt, "closeTable");
+        assertEquals("the grouped stage should be closed with the group", -1L, get(cxt, "seed"));
+        seed = (long) call(cxt, "seed");
+        assertNull("Table shouldn't be init by the Seed init", get(cxt, "table"));
+        assertEquals((seed * 961) ^ seed, call(cxt, "hash", 2));
+    }
+
+    @Test
+    public void testDeclaredGroupedWith() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(DeclaredGroupedStages.class);
+        CtClass<?> compiled = new Compiler(root).compile();
+        System.out.println(compiled);
+        assertFalse(body(compiled, "offset").contains("base()"));
+        assertTrue(body(compiled, "closeWindow").contains("this.doCloseBase()"));
+        assertTrue("other dependants of the grouped stage should be closed too",
+                body(compiled, "closeWindow").contains("this.closeBaseDependants()"));
+
+        Object cxt = newInstance(compiled);
+        assertEquals(2L, call(cxt, "windowOffset", 5));
+        long base = (long) call(cxt, "historyBase");
+        assertEquals(base, get(cxt, "base"));
+        call(cxt, "closeWindow");
+        assertEquals(-1L, get(cxt, "base"));
+        assertNull(get(cxt, "history"));
+        assertEquals(1L, call(cxt, "windowOffset", 1));
+        call(cxt, "closeBase");
+        assertNull("closing the grouped stage should close the group", get(cxt, "window"));
+    }
+
+    @Test
+    public void testStageWithDeclaredCloseNotGrouped() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(ClosedGroupedStages.class);
+        CtClass<?> compiled = new Compiler(root).groupStages().compile();
+        System.out.println(compiled);
+        assertTrue("seed guard should be kept, Seed has a declared close method",
+                body(compiled, "lookup").contains("seed()"));
+        assertFalse(body(compiled, "closeTable").contains("Seed"));
+
+        Object cxt = newInstance(compiled);
+        long seed = (long) call(cxt, "seed");
+        assertEquals((seed * 31) ^ seed, call(cxt, "hash", 4));
+        call(cxt, "closeTable");
+        assertEquals("Seed shouldn't be closed with Table", seed, get(cxt, "seed"));
+    }
+
+    @Test
+    public void testDeclaredGroupedWithStageWithDeclaredClose() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(DeclaredClosedGroupedStages.class);
+        try {
+            new Compiler(root).compile();
+            fail("Seed has a declared close method");
+        } catch (StageGraphCompilationException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(
+                    "DeclaredClosedGroupedStages.Seed couldn't be grouped with " +
+                            "DeclaredClosedGroupedStages.Table"));
+        }
+    }
+
+    private static String body(CtClass<?> compiled, String method) {
+        return compiled.getMethodsByName(method).get(0).getBody().toString();
+    }
+}
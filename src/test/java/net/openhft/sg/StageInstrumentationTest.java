@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.sg;
+
+import net.openhft.sg2.DiamondCloses;
+import org.junit.Test;
+import spoon.reflect.declaration.CtClass;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static java.util.Arrays.asList;
+import static net.openhft.sg.AutoGenerateFieldAccessesTest.getFactoryForTest;
+import static net.openhft.sg.GeneratedClasses.*;
+import static org.junit.Assert.*;
+
+public class StageInstrumentationTest {
+
+    @Test
+    public void testInstrumentStages() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(DevirtualizedRoot.class);
+        CompilationNode child = root.createChild();
+        child.addClassToMerge(DevirtualizedPart.class);
+        Compiler compiler = new Compiler(root).instrumentStages(1_000_000L);
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        assertTrue(compiled.getMethodsByName("initKey").get(0).getBody().toString()
+                .contains("StageInitEvent.commitIfSlow(\"DevirtualizedRoot.Key\""));
+
+        Object cxt = newInstance(compiled);
+        call(cxt, "compute", 3);
+        @SuppressWarnings("unchecked")
+        Map<String, long[]> counters = (Map<String, long[]>) call(cxt, "stageCounters");
+        assertArrayEquals("counters shouldn't be updated when stats are off",
+                new long[4], counters.get("DevirtualizedRoot.Key"));
+
+        System.setProperty("net.openhft.sg.stageStats", "true");
+        try {
+            cxt = newInstance(compiled);
+        } finally {
+            System.clearProperty("net.openhft.sg.stageStats");
+        }
+        call(cxt, "compute", 3);
+        call(cxt, "compute", 4);
+        assertEquals(asList("DevirtualizedRoot.Key", "DevirtualizedPart.Base"),
+                asList(((Set<?>) call(cxt, "initStages")).toArray()));
+        call(cxt, "closeKey");
+        call(cxt, "closeKey");
+        @SuppressWarnings("unchecked")
+        Map<String, long[]> stats = (Map<String, long[]>) call(cxt, "stageCounters");
+        // inits, closes, cascade closes, slow guards
+        assertArrayEquals(new long[] {2, 1, 0, 0}, stats.get("DevirtualizedRoot.Key"));
+        assertArrayEquals(new long[] {1, 0, 0, 1}, stats.get("DevirtualizedPart.Base"));
+        call(cxt, "close");
+        assertTrue(((Set<?>) call(cxt, "initStages")).isEmpty());
+    }
+
+    @Test
+    public void testFlattenedCloseCascadesCountedAndTraced() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(DiamondCloses.class);
+        Compiler compiler = new Compiler(root).instrumentStages().traceStages(16)
+                .flattenCloseCascades();
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+
+        System.setProperty("net.openhft.sg.stageStats", "true");
+        System.setProperty("net.openhft.sg.stageTrace", "true");
+        Object cxt;
+        try {
+            cxt = newInstance(compiled);
+        } finally {
+            System.clearProperty("net.openhft.sg.stageStats");
+            System.clearProperty("net.openhft.sg.stageTrace");
+        }
+        ((List<?>) get(cxt, "closed")).clear();
+        assertEquals(10L, call(cxt, "top", 2));
+        call(cxt, "closeBase");
+        @SuppressWarnings("unchecked")
+        Map<String, long[]> stats = (Map<String, long[]>) call(cxt, "stageCounters");
+        // inits, closes, cascade closes, slow guards
+        assertArrayEquals(new long[] {1, 1, 1, 0}, stats.get("DiamondCloses.Base"));
+        for (String stage : asList("Left", "Right", "Top")) {
+            assertArrayEquals(stage, new long[] {1, 1, 0, 1},
+                    stats.get("DiamondCloses." + stage));
+        }
+
+        List<String> trace = StageTraceReader.read((ByteBuffer) get(cxt, "stageTrace"),
+                compiler.getTracedStageNames());
+        trace.forEach(System.out::println);
+        assertEquals(4 + 1 + 4, trace.size());
+        for (String stage : asList("Base", "Left", "Right", "Top")) {
+            assertEquals(stage, 1L, trace.stream()
+                    .filter(r -> r.endsWith(" DiamondCloses." + stage + " close")).count());
+        }
+        assertTrue(trace.get(4).endsWith(" DiamondCloses.Base close"));
+        assertTrue(trace.get(5).endsWith(" DiamondCloses.Base cascade close"));
+    }
+}
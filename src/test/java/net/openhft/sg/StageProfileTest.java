@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.sg;
+
+import org.junit.Test;
+import spoon.reflect.declaration.CtClass;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static net.openhft.sg.AutoGenerateFieldAccessesTest.getFactoryForTest;
+import static net.openhft.sg.GeneratedClasses.*;
+import static org.junit.Assert.*;
+
+public class StageProfileTest {
+
+    @Test
+    public void testUseProfile() {
+        Map<String, long[]> counters = new HashMap<>();
+        counters.put("DevirtualizedRoot.Key", new long[] {100_000L, 0L, 0L, 0L});
+        counters.put("DevirtualizedPart.Base", new long[] {10L, 10L, 0L, 10L});
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(DevirtualizedRoot.class);
+        CompilationNode child = root.createChild();
+        child.addClassToMerge(DevirtualizedPart.class);
+        Compiler compiler = new Compiler(root).versionEntryMethods().layOutFields()
+                .useProfile(new StageProfile().add(counters));
+        System.out.println(compiler.compile());
+        compiler.getFieldLayoutReport().forEach(System.out::println);
+        assertFalse(compiler.getFieldLayoutReport().isEmpty());
+    }
+
+    @Test
+    public void testProfiledStages() {
+        Map<String, long[]> counters = new HashMap<>();
+        counters.put("ProfiledStages.Hot", new long[] {100_000L, 0L, 0L, 10L});
+        counters.put("ProfiledStages.Rare", new long[] {10L, 10L, 0L, 10L});
+        counters.put("ProfiledStages.Seed", new long[] {5L, 0L, 5L, 0L});
+        counters.put("ProfiledStages.Table", new long[] {5L, 5L, 0L, 0L});
+        Compiler compiler = profiledStagesCompiler(counters);
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        compiler.getFieldLayoutReport().forEach(System.out::println);
+
+        assertFalse("Rare is cold", compiled.getMethodsByName("slowInitRare").isEmpty());
+        assertTrue(compiled.getMethodsByName("slowInitHot").isEmpty());
+        assertTrue("Rare is mostly init by guards",
+                compiled.getMethodsByName("rareFastPath").isEmpty());
+        assertFalse(compiled.getMethodsByName("hotFastPath").isEmpty());
+        assertFalse("Seed is init together with Table",
+                body(compiled, "lookup").contains("seed()"));
+        assertTrue(body(compiled, "closeTable").contains("this.doCloseSeed()"));
+        assertFieldOrder(compiler, "hot", "rare", "seed");
+
+        Object cxt = newInstance(compiled);
+        assertEquals(7L + 6L + 3L, call(cxt, "hot", 1));
+        assertNotEquals(-1L, call(cxt, "rare"));
+        call(cxt, "closeTable");
+        assertEquals(-1L, get(cxt, "seed"));
+        assertEquals(7L + 3L + 3L, call(cxt, "hot", 0));
+    }
+
+    @Test
+    public void testStageInitMoreRarelyThanDependantNotGrouped() {
+        Map<String, long[]> counters = new HashMap<>();
+        counters.put("ProfiledStages.Seed", new long[] {10L, 0L, 0L, 0L});
+        counters.put("ProfiledStages.Table", new long[] {50_000L, 50_000L, 0L, 0L});
+        CtClass<?> compiled = profiledStagesCompiler(counters).groupStages().compile();
+        System.out.println(compiled);
+        assertTrue("closing Seed with Table would init it more often",
+                body(compiled, "lookup").contains("seed()"));
+        assertFalse(body(compiled, "closeTable").contains("Seed"));
+    }
+
+    private static Compiler profiledStagesCompiler(Map<String, long[]> counters) {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(ProfiledStages.class);
+        return new Compiler(root).versionEntryMethods().layOutFields()
+                .useProfile(new StageProfile().add(counters));
+    }
+
+    private static void assertFieldOrder(Compiler compiler, String... fields) {
+        String report = String.join("\n", compiler.getFieldLayoutReport());
+        int previous = -1;
+        for (String field : fields) {
+            int offset = report.indexOf(" " + field + "@");
+            assertTrue(field + " is out of order in " + report, offset > previous);
+            previous = offset;
+        }
+    }
+
+    private static String body(CtClass<?> type, String method) {
+        return type.getMethodsByName(method).get(0).getBody().toString();
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.sg;
+
+import org.junit.Test;
+import spoon.reflect.declaration.CtClass;
+
+import java.nio.ByteBuffer;
+
+import static net.openhft.sg.AutoGenerateFieldAccessesTest.getFactoryForTest;
+import static net.openhft.sg.GeneratedClasses.*;
+import static org.junit.Assert.*;
+
+public class StageTraceTest {
+
+    @Test
+    public void testTraceStages() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(DevirtualizedRoot.class);
+        CompilationNode child = root.createChild();
+        child.addClassToMerge(DevirtualizedPart.class);
+        Compiler compiler = new Compiler(root).traceStages(16);
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+
+        Object cxt = newInstance(compiled);
+        assertNull("buffer shouldn't be allocated when tracing is off", get(cxt, "stageTrace"));
+        call(cxt, "compute", 3);
+
+        System.setProperty("net.openhft.sg.stageTrace", "true");
+        try {
+            cxt = newInstance(compiled);
+        } finally {
+            System.clearProperty("net.openhft.sg.stageTrace");
+        }
+        ByteBuffer trace = (ByteBuffer) get(cxt, "stageTrace");
+        assertEquals(16 + 16 * 16, trace.capacity());
+        call(cxt, "compute", 3);
+        call(cxt, "closeKey");
+        call(cxt, "closeKey");
+        assertEquals("closing a not init stage isn't traced", 3L, trace.getLong(0));
+        // Key is stage 1, Base is stage 0; event 0 is init, 1 is close
+        assertRecord(trace, 0, 1, 0);
+        assertRecord(trace, 1, 0, 0);
+        assertRecord(trace, 2, 1, 1);
+        assertTrue(trace.getLong(16 + 8) <= trace.getLong(16 + 2 * 16 + 8));
+
+        try {
+            call(cxt, "setStageTraceBuffer", ByteBuffer.allocate(16));
+            fail("a buffer without space for records should be rejected");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+        ByteBuffer ring = ByteBuffer.allocate(16 + 2 * 16);
+        call(cxt, "setStageTraceBuffer", ring);
+        call(cxt, "compute", 4);
+        call(cxt, "closeKey");
+        call(cxt, "compute", 5);
+        assertEquals(3L, ring.getLong(0));
+        // the third record overwrites the first one
+        assertRecord(ring, 0, 1, 0);
+        assertRecord(ring, 1, 1, 1);
+    }
+
+    private static void assertRecord(ByteBuffer trace, int slot, int stage, int event) {
+        assertEquals((((long) stage) << 8) | event, trace.getLong(16 + slot * 16));
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.sg;
+
+import org.junit.Test;
+import spoon.reflect.declaration.CtClass;
+
+import static net.openhft.sg.AutoGenerateFieldAccessesTest.getFactoryForTest;
+import static net.openhft.sg.GeneratedClasses.*;
+import static org.junit.Assert.*;
+
+public class StateCopyTest {
+
+    @Test
+    public void testGenerateCopyStateFrom() throws Exception {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(DevirtualizedRoot.class);
+        CompilationNode child = root.createChild();
+        child.addClassToMerge(DevirtualizedPart.class);
+        Compiler compiler = new Compiler(root).packInitStates().trackStagesToClose()
+                .generateCopyStateFrom();
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+
+        Class<?> cxtClass = compileAndLoad(compiled);
+        Object source = cxtClass.newInstance();
+        call(source, "compute", 3);
+        Object sourcePart = get(source, "part");
+        long base = (Long) get(sourcePart, "base");
+
+        Object copy = cxtClass.newInstance();
+        call(copy, "compute", 7);
+        call(copy, "copyStateFrom", source);
+        assertEquals(3, get(copy, "key"));
+        assertEquals(base, get(get(copy, "part"), "base"));
+        assertEquals(true, call(copy, "keyInit"));
+        assertEquals(true, call(get(copy, "part"), "baseInit"));
+        assertEquals("the source is not changed", 3, get(source, "key"));
+        call(copy, "copyStateFrom", copy);
+        assertEquals(3, get(copy, "key"));
+
+        // stages to close are copied too, so the global close closes copied stages
+        call(copy, "close");
+        assertEquals(false, call(copy, "keyInit"));
+        assertEquals(false, call(get(copy, "part"), "baseInit"));
+        assertEquals(-1L, get(get(copy, "part"), "base"));
+
+        // stages not init in the source are closed in the target
+        call(source, "closeKey");
+        call(copy, "compute", 5);
+        call(copy, "copyStateFrom", source);
+        assertEquals(false, call(copy, "keyInit"));
+        assertEquals(-1, get(copy, "key"));
+        assertEquals(base, get(get(copy, "part"), "base"));
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.openhft.sg;
+
+import org.junit.Test;
+import spoon.reflect.declaration.CtClass;
+
+import static net.openhft.sg.AutoGenerateFieldAccessesTest.getFactoryForTest;
+import static net.openhft.sg.GeneratedClasses.call;
+import static net.openhft.sg.GeneratedClasses.newInstance;
+import static org.junit.Assert.*;
+
+public class UnreachableStagesTest {
+
+    @Test
+    public void testEliminateUnreachableNodes() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(UnreachableStages.class);
+        Compiler compiler = new Compiler(root).eliminateUnreachableNodes();
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        assertEquals(3, compiler.getEliminatedNodeCount());
+        assertNull(compiled.getField("buffer"));
+        assertNull(compiled.getField("spare"));
+        assertTrue(compiled.getMethodsByName("spareHash").isEmpty());
+        assertTrue(compiled.getMethodsByName("closeHashDependants").isEmpty());
+        assertNotNull(compiled.getField("hash"));
+
+        Object cxt = newInstance(compiled);
+        assertEquals(94L, call(cxt, "compute", 3));
+    }
+}
@@ -20,9 +20,13 @@ package net.openhft.sg2;
 import net.openhft.sg.Compiler;
 import org.junit.Test;
 import spoon.Launcher;
+import spoon.reflect.declaration.CtClass;
 import spoon.reflect.declaration.CtPackage;
 import spoon.reflect.factory.Factory;
 
+import static net.openhft.sg.GeneratedClasses.compile;
+import static org.junit.Assert.assertTrue;
+
 public class CompilerTest {
     
     static Factory getFactoryForTest() {
@@ -51,6 +55,11 @@ public class CompilerTest {
         child.addClassToMerge(Part1.class);
         child.addClassToMerge(Part2.class);
         net.openhft.sg.Compiler compiler = new Compiler(root);
-        System.out.println(compiler.compile());
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        // the child node closes dependants in the outer node through the qualified outer this
+        assertTrue(compiled.getNestedType("Part1_Part2").getMethodsByName("closeXDependants")
+                .get(0).getBody().toString().contains("PartSub.this.closeFlag()"));
+        compile(compiled);
     }
 }
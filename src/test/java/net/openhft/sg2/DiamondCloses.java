@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg2;
+
+import net.openhft.sg.Staged;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@Staged
+public class DiamondCloses {
+
+    static final List<String> closed = new ArrayList<>();
+
+    int base = -1;
+
+    void initBase(int base) {
+        this.base = base;
+    }
+
+    void closeBase() {
+        closed.add("Base");
+        base = -1;
+    }
+
+    long left = -1L;
+
+    void initLeft() {
+        left = base * 2L;
+    }
+
+    void closeLeft() {
+        closed.add("Left");
+        left = -1L;
+    }
+
+    long right = -1L;
+
+    void initRight() {
+        right = base * 3L;
+    }
+
+    void closeRight() {
+        closed.add("Right");
+        right = -1L;
+    }
+
+    long top = -1L;
+
+    void initTop() {
+        top = left + right;
+    }
+
+    void closeTop() {
+        closed.add("Top");
+        top = -1L;
+    }
+
+    public long top(int base) {
+        initBase(base);
+        return top;
+    }
+
+    public long left(int base) {
+        initBase(base);
+        return left;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg2;
+
+import net.openhft.sg.CompilationNode;
+import net.openhft.sg.Compiler;
+import org.junit.Test;
+import spoon.reflect.declaration.CtClass;
+
+import static net.openhft.sg.GeneratedClasses.compile;
+import static net.openhft.sg2.CompilerTest.getFactoryForTest;
+import static org.junit.Assert.assertNotNull;
+
+public class FieldLayoutTest {
+
+    @Test
+    public void testFieldLayout() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(PartSub.class);
+        CompilationNode child = root.createChild();
+        child.addClassToMerge(Part1.class);
+        child.addClassToMerge(Part2.class);
+        Compiler compiler = new Compiler(root).padFields();
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        compiler.getFieldLayoutReport().forEach(System.out::println);
+        assertNotNull(compiled.getField("headPadding0"));
+        assertNotNull(compiled.getField("tailPadding7"));
+        compile(compiled);
+    }
+}
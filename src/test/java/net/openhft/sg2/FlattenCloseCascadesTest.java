@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg2;
+
+import net.openhft.sg.CompilationNode;
+import net.openhft.sg.Compiler;
+import org.junit.Test;
+import spoon.reflect.declaration.CtClass;
+
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
+import static net.openhft.sg.GeneratedClasses.*;
+import static net.openhft.sg2.CompilerTest.getFactoryForTest;
+import static org.junit.Assert.*;
+
+public class FlattenCloseCascadesTest {
+
+    @Test
+    public void testFlattenCloseCascades() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(PartSub.class);
+        CompilationNode child = root.createChild();
+        child.addClassToMerge(Part1.class);
+        child.addClassToMerge(Part2.class);
+        Compiler compiler = new Compiler(root).flattenCloseCascades();
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        compile(compiled);
+    }
+
+    @Test
+    public void testDiamondClosedOnceDependantsFirst() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(DiamondCloses.class);
+        Compiler compiler = new Compiler(root).flattenCloseCascades();
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        String closeBaseDependants =
+                compiled.getMethodsByName("closeBaseDependants").get(0).getBody().toString();
+        // dependants are closed directly, without recursive cascades
+        assertTrue(closeBaseDependants.contains("this.doCloseTop()"));
+        assertFalse(closeBaseDependants.contains("this.closeLeft()"));
+        assertTrue(closeBaseDependants.indexOf("doCloseTop") <
+                closeBaseDependants.indexOf("doCloseLeft"));
+        assertTrue(closeBaseDependants.indexOf("doCloseTop") <
+                closeBaseDependants.indexOf("doCloseRight"));
+
+        Object cxt = newInstance(compiled);
+        @SuppressWarnings("unchecked")
+        List<String> closed = (List<String>) get(cxt, "closed");
+        assertEquals(10L, call(cxt, "top", 2));
+        assertTrue(closed.isEmpty());
+        // re-init of Base closes all transitive dependants
+        assertEquals(15L, call(cxt, "top", 3));
+        assertClosedOnceDependantsFirst(closed, "Top", "Left", "Right");
+        closed.clear();
+        call(cxt, "closeBase");
+        assertClosedOnceDependantsFirst(closed, "Top", "Left", "Right", "Base");
+        assertEquals(false, call(cxt, "leftInit"));
+        assertEquals(false, call(cxt, "topInit"));
+
+        // not init dependants are not closed
+        closed.clear();
+        assertEquals(8L, call(cxt, "left", 4));
+        call(cxt, "closeBase");
+        assertEquals(asList("Left", "Base"), closed);
+        closed.clear();
+        assertEquals(25L, call(cxt, "top", 5));
+        call(cxt, "close");
+        assertClosedOnceDependantsFirst(closed, "Top", "Left", "Right", "Base");
+    }
+
+    /**
+     * Checks that each of the given stages is closed exactly once, and dependants are closed
+     * before their dependencies.
+     */
+    private static void assertClosedOnceDependantsFirst(List<String> closed, String... stages) {
+        assertEquals(asList(stages).stream().sorted().collect(toList()),
+                closed.stream().sorted().collect(toList()));
+        String[][] dependantToDependency = {
+                {"Top", "Left"}, {"Top", "Right"}, {"Left", "Base"}, {"Right", "Base"}};
+        for (String[] edge : dependantToDependency) {
+            if (closed.contains(edge[0]) && closed.contains(edge[1])) {
+                assertTrue(closed.toString(),
+                        closed.indexOf(edge[0]) < closed.indexOf(edge[1]));
+            }
+        }
+    }
+}
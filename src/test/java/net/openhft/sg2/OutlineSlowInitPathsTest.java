@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg2;
+
+import net.openhft.sg.CompilationNode;
+import net.openhft.sg.Compiler;
+import org.junit.Test;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtType;
+
+import static net.openhft.sg.GeneratedClasses.compile;
+import static net.openhft.sg2.CompilerTest.getFactoryForTest;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OutlineSlowInitPathsTest {
+
+    @Test
+    public void testOutlineSlowInitPaths() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(PartSub.class);
+        CompilationNode child = root.createChild();
+        child.addClassToMerge(Part1.class);
+        child.addClassToMerge(Part2.class);
+        Compiler compiler = new Compiler(root).outlineSlowInitPaths().instrumentStages();
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        CtType<?> part = compiled.getNestedType("Part1_Part2");
+        assertTrue(body(part, "x").contains("this.slowInitX()"));
+        assertFalse(body(part, "x").contains("initX_Suffix"));
+        // the slow guard is counted in the shared slow path, not in each accessor
+        assertFalse(body(part, "x").contains("xSlowGuards"));
+        // the slow path calls the init method rather than copying it
+        String slowInitX = body(part, "slowInitX");
+        assertTrue(slowInitX.contains("this.initX_Suffix()"));
+        assertTrue(slowInitX.contains("this.xSlowGuards++"));
+        assertFalse(slowInitX.contains("x = (this.a()) + 1"));
+        assertTrue(body(compiled, "slowInitFlag").contains("flag"));
+        compile(compiled);
+    }
+
+    private static String body(CtType<?> type, String method) {
+        return type.getMethodsByName(method).get(0).getBody().toString();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg2;
+
+import net.openhft.sg.CompilationNode;
+import net.openhft.sg.Compiler;
+import org.junit.Test;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtType;
+
+import static net.openhft.sg.GeneratedClasses.call;
+import static net.openhft.sg.GeneratedClasses.compile;
+import static net.openhft.sg.GeneratedClasses.newInstance;
+import static net.openhft.sg2.CompilerTest.getFactoryForTest;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PackedInitStatesTest {
+
+    @Test
+    public void testPackedInitStates() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(PartSub.class);
+        CompilationNode child = root.createChild();
+        child.addClassToMerge(Part1.class);
+        child.addClassToMerge(Part2.class);
+        Compiler compiler = new Compiler(root).packInitStates();
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        CtType<?> part = compiled.getNestedType("Part1_Part2");
+        assertEquals(long.class, part.getField("stageInitBits0").getType().getActualClass());
+        assertEquals("return ((stageInitBits0 & 0x2L) != 0)",
+                body(part, "fooInit").replaceAll("[{};\\s]+", " ").trim());
+        assertTrue(body(part, "initFoo").contains("stageInitBits0 |= 0x2L"));
+        assertTrue(body(part, "closeFoo").contains("stageInitBits0 &= ~0x2L"));
+        assertTrue(body(part, "doCloseA").contains("stageInitBits0 &= ~0x1L"));
+        assertFalse(body(part, "fooInit").contains("this.b"));
+        compile(compiled);
+    }
+
+    @Test
+    public void testInitFieldAssignedInStageMethodNotPacked() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(SelfClosingStage.class);
+        CtClass<?> compiled = new Compiler(root).packInitStates().compile();
+        System.out.println(compiled);
+        assertTrue(body(compiled, "baseInit").contains("stageInitBits0"));
+        assertFalse("consume() closes Token by assigning its init field",
+                body(compiled, "tokenInit").contains("stageInitBits0"));
+        assertFalse(body(compiled, "initToken").contains("stageInitBits0"));
+
+        Object cxt = newInstance(compiled);
+        assertEquals(43L, call(cxt, "next"));
+        assertEquals("Token should be init again", 43L, call(cxt, "next"));
+    }
+
+    private static String body(CtType<?> type, String method) {
+        return type.getMethodsByName(method).get(0).getBody().toString();
+    }
+}
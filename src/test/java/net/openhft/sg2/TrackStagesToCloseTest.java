@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2015,2016  higherfrequencytrading.com
+ * Copyright (C) 2016 Roman Leventov
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.openhft.sg2;
+
+import net.openhft.sg.CompilationNode;
+import net.openhft.sg.Compiler;
+import org.junit.Test;
+import spoon.reflect.declaration.CtClass;
+import spoon.reflect.declaration.CtType;
+
+import static net.openhft.sg.GeneratedClasses.compile;
+import static net.openhft.sg2.CompilerTest.getFactoryForTest;
+import static org.junit.Assert.assertTrue;
+
+public class TrackStagesToCloseTest {
+
+    @Test
+    public void testTrackStagesToClose() {
+        CompilationNode root = CompilationNode.root(getFactoryForTest());
+        root.addClassToMerge(PartSub.class);
+        CompilationNode child = root.createChild();
+        child.addClassToMerge(Part1.class);
+        child.addClassToMerge(Part2.class);
+        Compiler compiler = new Compiler(root).trackStagesToClose();
+        CtClass<?> compiled = compiler.compile();
+        System.out.println(compiled);
+        CtType<?> part = compiled.getNestedType("Part1_Part2");
+        assertTrue(body(part, "initX_Suffix").contains("stagesToClose0 |= 0x4L"));
+        // closed stages shouldn't be closed again by the global close
+        assertTrue(body(part, "closeX").contains("stagesToClose0 &= ~0x4L"));
+        assertTrue(body(part, "doCloseX").contains("stagesToClose0 &= ~0x4L"));
+        assertTrue(body(compiled, "closeFlag").contains("stagesToClose0 &= ~0x8L"));
+        assertTrue(body(compiled, "close").contains("this.stagesToClose0 = 0L"));
+        compile(compiled);
+    }
+
+    private static String body(CtType<?> type, String method) {
+        return type.getMethodsByName(method).get(0).getBody().toString();
+    }
+}